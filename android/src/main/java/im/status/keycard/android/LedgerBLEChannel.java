@@ -5,34 +5,33 @@ import android.content.Context;
 import im.status.keycard.io.*;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 
 public class LedgerBLEChannel implements CardChannel {
   final public static UUID LEDGER_UUID = UUID.fromString("13D63400-2C97-0004-0000-4C6564676572");
   final public static UUID LEDGER_REQ_UUID = UUID.fromString("13D63400-2C97-0004-0002-4C6564676572");
   final public static UUID LEDGER_RSP_UUID = UUID.fromString("13D63400-2C97-0004-0001-4C6564676572");
 
-  final private static int BLE_WRITE_FAILED = -1;
-  final private static int BLE_WRITE_STARTED = 0;
-  final private static int BLE_WRITE_FINISHED = 1;
-
   final private static int BLE_TIMEOUT = 2000;
-
+  final private static int WRITE_WITHOUT_RESPONSE_WINDOW = 4;
 
   final private BluetoothGatt bluetoothGatt;
   private BluetoothGattCharacteristic reqChar;
   private boolean connected;
   private int mtuSize;
-  private int writeStatus;
-  private LinkedBlockingQueue<byte[]> readQueue;
+  private byte[] chunk;
+  private boolean writeWithoutResponse;
+  private volatile LedgerExchange exchange;
+  private final ArrayDeque<Runnable> queue;
+  private boolean busy;
 
   public LedgerBLEChannel(Context context, BluetoothDevice device, CardListener listener) {
     this.connected = false;
     this.mtuSize = 20;
-    this.readQueue = new LinkedBlockingQueue<>();
-    this.writeStatus = BLE_WRITE_FINISHED;
+    this.queue = new ArrayDeque<>();
     final CardChannel channel = this;
 
     this.bluetoothGatt = device.connectGatt(context, false, new BluetoothGattCallback() {
@@ -77,7 +76,17 @@ public class LedgerBLEChannel implements CardChannel {
 
       @Override
       public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        writeStatus = status == BluetoothGatt.GATT_SUCCESS ? BLE_WRITE_FINISHED : BLE_WRITE_FAILED;
+        LedgerExchange current = exchange;
+
+        if (current == null) {
+          return;
+        }
+
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+          current.onWriteComplete();
+        } else {
+          current.onWriteFailed(new IOException("write operation failed"));
+        }
       }
 
       @Override
@@ -101,50 +110,147 @@ public class LedgerBLEChannel implements CardChannel {
           return;
         }
 
-        readQueue.offer(rsp);
+        LedgerExchange current = exchange;
+
+        if (current != null) {
+          current.onChunkReceived(rsp);
+        }
       }
     });
   }
 
   @Override
   public APDUResponse send(APDUCommand cmd) throws IOException {
-    return LedgerUtil.send(cmd, mtuSize, false, new LedgerUtil.Callback() {
+    final CountDownLatch latch = new CountDownLatch(1);
+    final APDUResponse[] response = new APDUResponse[1];
+    final IOException[] error = new IOException[1];
+
+    submit(cmd, new LedgerExchange.Callback() {
       @Override
-      public void write(byte[] chunk) throws IOException {
-        writeStatus = BLE_WRITE_STARTED;
-        reqChar.setValue(chunk);
-        bluetoothGatt.writeCharacteristic(reqChar);
+      public void onComplete(APDUResponse resp, IOException e) {
+        response[0] = resp;
+        error[0] = e;
+        latch.countDown();
+      }
+    });
 
-        long timeout = 0;
-        while(writeStatus == BLE_WRITE_STARTED || timeout >= BLE_TIMEOUT) {
-          try {
-            Thread.sleep(10);
-            timeout += 10;
-          } catch (InterruptedException e) {
-            throw new IOException("write interrupted");
-          }
-        }
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("send interrupted", e);
+    }
+
+    if (error[0] != null) {
+      throw error[0];
+    }
+
+    return response[0];
+  }
+
+  /**
+   * Sends the command without blocking. Frames are written from the GATT callbacks as soon as the previous write is
+   * acknowledged and the response is assembled from the notifications, so no thread waits on the device. Commands are
+   * queued and exchanged one at a time, in the order they are sent, together with the ones sent with send.
+   *
+   * This method requires API level 24, the blocking send method does not use it.
+   *
+   * @param cmd the command to send
+   * @return the future card response
+   */
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    final CompletableFuture<APDUResponse> future = new CompletableFuture<>();
 
-        if (writeStatus != BLE_WRITE_FINISHED) {
-          throw new IOException("write operation failed");
+    submit(cmd, new LedgerExchange.Callback() {
+      @Override
+      public void onComplete(APDUResponse resp, IOException e) {
+        if (e != null) {
+          future.completeExceptionally(e);
+        } else {
+          future.complete(resp);
         }
       }
+    });
 
-      @Override
-      public void read(byte[] chunk) throws IOException {
-        try {
-          byte[] data = readQueue.poll(BLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    return future;
+  }
 
-          if (data == null) {
-            throw new IOException("read timeout");
+  private void submit(final APDUCommand cmd, final LedgerExchange.Callback callback) {
+    Runnable start = new Runnable() {
+      @Override
+      public void run() {
+        startExchange(cmd, new LedgerExchange.Callback() {
+          @Override
+          public void onComplete(APDUResponse resp, IOException e) {
+            next();
+            callback.onComplete(resp, e);
           }
+        });
+      }
+    };
 
-          System.arraycopy(data, 0, chunk, 0, Math.min(data.length, chunk.length));
-        } catch (InterruptedException e) {
-          throw new IOException("read timeout");
-        }
+    synchronized (this) {
+      if (busy) {
+        queue.add(start);
+        return;
+      }
+
+      busy = true;
+    }
+
+    start.run();
+  }
+
+  private void next() {
+    Runnable start;
+
+    synchronized (this) {
+      start = queue.poll();
+
+      if (start == null) {
+        busy = false;
+        return;
+      }
+    }
+
+    start.run();
+  }
+
+  private synchronized void startExchange(APDUCommand cmd, LedgerExchange.Callback callback) {
+    if (chunk == null || chunk.length != mtuSize) {
+      chunk = new byte[mtuSize];
+    }
+
+    int window = writeWithoutResponse ? WRITE_WITHOUT_RESPONSE_WINDOW : 1;
+
+    exchange = new LedgerExchange(cmd, chunk, false, BLE_TIMEOUT, window, new LedgerChunkWriter.Transport() {
+      @Override
+      public boolean write(byte[] chunk, boolean withResponse) {
+        reqChar.setWriteType(withResponse ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        reqChar.setValue(chunk);
+        return bluetoothGatt.writeCharacteristic(reqChar);
       }
     });
+
+    exchange.start(callback);
+  }
+
+  /**
+   * Enables streaming the frames of a command with write without response, if the device supports it. The write of
+   * the next frame then starts as soon as the stack has queued the previous one instead of after the acknowledgement
+   * of the device, with at most WRITE_WITHOUT_RESPONSE_WINDOW frames pending and retries when the stack is busy.
+   *
+   * @param writeWithoutResponse true to write without response, false to wait for the acknowledgement of each frame
+   * @return true if the setting was applied, false if the device does not support write without response
+   */
+  public synchronized boolean setWriteWithoutResponse(boolean writeWithoutResponse) {
+    if (writeWithoutResponse && (reqChar == null || (reqChar.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0)) {
+      return false;
+    }
+
+    this.writeWithoutResponse = writeWithoutResponse;
+    return true;
   }
 
   @Override
@@ -5,6 +5,8 @@ import android.util.Log;
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUResponse;
 import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.CardTimeoutException;
+import im.status.keycard.io.Deadline;
 
 import java.io.IOException;
 
@@ -15,20 +17,47 @@ public class NFCCardChannel implements CardChannel {
   private static final String TAG = "CardChannel";
 
   private IsoDep isoDep;
+  private byte[] txBuffer;
+  private int maxTransceiveLength;
 
   public NFCCardChannel(IsoDep isoDep) {
+    this(isoDep, false);
+  }
+
+  /**
+   * Constructs a channel which can optionally send extended length APDUs. Extended length is only used if the NFC
+   * controller supports it, in which case the maximum transceive length is the one reported by the controller.
+   *
+   * @param isoDep the IsoDep tag
+   * @param extendedLength whether extended length APDUs should be used
+   */
+  public NFCCardChannel(IsoDep isoDep, boolean extendedLength) {
     this.isoDep = isoDep;
+
+    if (extendedLength && isoDep.isExtendedLengthApduSupported()) {
+      this.maxTransceiveLength = Math.min(isoDep.getMaxTransceiveLength(), APDUCommand.MAX_EXTENDED_LENGTH);
+    } else {
+      this.maxTransceiveLength = APDUCommand.MAX_SHORT_LENGTH;
+    }
   }
 
   @Override
-  public APDUResponse send(APDUCommand cmd) throws IOException {
-    byte[] apdu = cmd.serialize();
+  public synchronized APDUResponse send(APDUCommand cmd) throws IOException {
+    int length = cmd.getSerializedLength();
+
+    // IsoDep only takes whole arrays, so the buffer is reused as long as consecutive commands have the same length
+    if (txBuffer == null || txBuffer.length != length) {
+      txBuffer = new byte[length];
+    }
+
+    byte[] apdu = txBuffer;
+    cmd.serialize(apdu, 0);
     Log.d(TAG, String.format("COMMAND CLA: %02X INS: %02X P1: %02X P2: %02X LC: %02X", cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData().length));
     
     try {
       byte[] resp = this.isoDep.transceive(apdu);
       APDUResponse response = new APDUResponse(resp);
-      Log.d(TAG, String.format("RESPONSE LEN: %02X, SW: %04X %n-----------------------", response.getData().length, response.getSw()));
+      Log.d(TAG, String.format("RESPONSE LEN: %02X, SW: %04X %n-----------------------", response.getDataLength(), response.getSw()));
       return response;
     } catch(SecurityException e) {
       throw new IOException("Tag disconnected", e);
@@ -37,6 +66,54 @@ public class NFCCardChannel implements CardChannel {
     }
   }
 
+  /**
+   * Sends the command with the IsoDep timeout lowered to the time left before the deadline. The timeout set by the
+   * manager is restored afterwards.
+   *
+   * @param cmd the command to send
+   * @param deadline the deadline
+   * @return the card response
+   * @throws IOException communication error, or CardTimeoutException if the deadline expired
+   */
+  @Override
+  public synchronized APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    if (!deadline.isFinite()) {
+      return send(cmd);
+    }
+
+    deadline.check();
+
+    int timeout;
+
+    try {
+      timeout = isoDep.getTimeout();
+      isoDep.setTimeout(Math.max(1, deadline.remainingMillis(timeout)));
+    } catch (SecurityException e) {
+      throw new IOException("Tag disconnected", e);
+    }
+
+    try {
+      return send(cmd);
+    } catch (IOException e) {
+      if (deadline.isExpired()) {
+        throw new CardTimeoutException("No response before the deadline", e);
+      }
+
+      throw e;
+    } finally {
+      try {
+        isoDep.setTimeout(timeout);
+      } catch (SecurityException e) {
+        // the tag is gone, the timeout does not matter anymore
+      }
+    }
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return maxTransceiveLength;
+  }
+
   @Override
   public boolean isConnected() {
     try {
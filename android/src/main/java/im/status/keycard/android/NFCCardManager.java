@@ -6,83 +6,141 @@ import android.nfc.tech.IsoDep;
 import android.os.SystemClock;
 import android.util.Log;
 import im.status.keycard.globalplatform.Crypto;
+import im.status.keycard.io.CardConnectionTracker;
 import im.status.keycard.io.CardListener;
 
 import java.io.IOException;
 
 /**
- * Manages connection of NFC-based cards. Extends Thread and must be started using the start() method. The thread has
- * a runloop which monitors the connection and from which CardListener callbacks are called.
+ * Manages connection of NFC-based cards. Extends Thread and must be started using the start() method.
+ *
+ * By default the connection is tracked from events, without polling, and the CardListener callbacks are called
+ * directly from the NFC reader thread: onConnected as soon as a tag is discovered and onDisconnected when a command
+ * fails because the tag is gone or when the watchdog finds the tag disconnected. onDisconnected can therefore be
+ * called from another thread while onConnected is still running, see CardListener. The thread started with start()
+ * terminates immediately in this mode.
+ *
+ * A manager created with the deprecated NFCCardManager(int) constructor keeps the previous behavior: its thread runs a
+ * loop polling the connection, from which the callbacks are called, so onDisconnected is only called once onConnected
+ * has returned.
  */
 public class NFCCardManager extends Thread implements NfcAdapter.ReaderCallback {
   private static final String TAG = "NFCCardManager";
-  private static final int DEFAULT_LOOP_SLEEP_MS = 50;
+  private static final int DEFAULT_WATCHDOG_MS = 1000;
 
-  private IsoDep isoDep;
-  private boolean isRunning;
-  private CardListener cardListener;
-  private int loopSleepMS;
+  private final CardConnectionTracker tracker;
+  private final int loopSleepMS;
+  private volatile IsoDep isoDep;
+  private volatile CardListener cardListener;
+  private boolean extendedLength;
 
   static {
     Crypto.addBouncyCastleProvider();
   }
 
   /**
-   * Constructs an NFC Card Manager with default delay between loop iterations.
+   * Constructs an NFC Card Manager tracking the connection from events, with the default watchdog interval.
    */
   public NFCCardManager() {
-    this(DEFAULT_LOOP_SLEEP_MS);
+    this(DEFAULT_WATCHDOG_MS, 0);
   }
 
   /**
-   * Constructs an NFC Card Manager with the given delay between loop iterations.
+   * Constructs an NFC Card Manager polling the connection from its own runloop, with the given delay between loop
+   * iterations. The callbacks are called from the runloop.
    *
    * @param loopSleepMS time to sleep between loops
+   * @deprecated use NFCCardManager() or withWatchdog(int), which do not poll the connection
    */
+  @Deprecated
   public NFCCardManager(int loopSleepMS) {
+    this(0, Math.max(1, loopSleepMS));
+  }
+
+  private NFCCardManager(int watchdogMS, int loopSleepMS) {
+    this.tracker = new CardConnectionTracker(watchdogMS);
     this.loopSleepMS = loopSleepMS;
   }
 
+  /**
+   * Constructs an NFC Card Manager tracking the connection from events and checking it at the given interval while a
+   * tag is connected. Without watchdog, the removal of a tag is only detected when a command fails or another tag is
+   * discovered.
+   *
+   * @param watchdogMS the interval of the watchdog in milliseconds, 0 to disable it
+   * @return the manager
+   */
+  public static NFCCardManager withWatchdog(int watchdogMS) {
+    return new NFCCardManager(watchdogMS, 0);
+  }
+
   /**
    * True if connected, false otherwise.
    * @return if connected, false otherwise
    */
   public boolean isConnected() {
     try {
-      return isoDep != null && isoDep.isConnected();
+      return (isPolling() || tracker.isConnected()) && isoDep != null && isoDep.isConnected();
     } catch (SecurityException e) {
       return false;
     }
   }
 
+  private boolean isPolling() {
+    return loopSleepMS > 0;
+  }
+
   @Override
   public void onTagDiscovered(Tag tag) {
-    isoDep = IsoDep.get(tag);
+    IsoDep newIsoDep = IsoDep.get(tag);
+
     try {
-      isoDep = IsoDep.get(tag);
-      isoDep.connect();
-      isoDep.setTimeout(120000);
+      newIsoDep.connect();
+      newIsoDep.setTimeout(120000);
     } catch (IOException | SecurityException e) {
       Log.e(TAG, "error connecting to tag");
+      return;
     }
+
+    isoDep = newIsoDep;
+
+    if (isPolling()) {
+      return;
+    }
+
+    Log.i(TAG, "tag connected");
+    tracker.onCardConnected(new NFCCardChannel(newIsoDep, extendedLength));
   }
 
   /**
-   * Runloop. Do NOT invoke directly. Use start() instead.
+   * Runloop polling the connection when created with NFCCardManager(int), otherwise returns immediately since the
+   * connection events are dispatched from the NFC reader thread. Do NOT invoke directly. Use start() instead.
    */
   public void run() {
+    if (!isPolling()) {
+      return;
+    }
+
     boolean connected = isConnected();
 
     while (true) {
       boolean newConnected = isConnected();
+
       if (newConnected != connected) {
         connected = newConnected;
         Log.i(TAG, "tag " + (connected ? "connected" : "disconnected"));
+        CardListener listener = cardListener;
 
-        if (connected && !isRunning) {
-          onCardConnected();
-        } else {
-          onCardDisconnected();
+        if (!connected) {
+          isoDep = null;
+        }
+
+        if (listener != null) {
+          if (connected) {
+            listener.onConnected(new NFCCardChannel(isoDep, extendedLength));
+          } else {
+            listener.onDisconnected();
+          }
         }
       }
 
@@ -91,27 +149,13 @@ public class NFCCardManager extends Thread implements NfcAdapter.ReaderCallback
   }
 
   /**
-   * Reacts on card connected by calling the callback of the registered listener.
-   */
-  private void onCardConnected() {
-    isRunning = true;
-
-    if (cardListener != null) {
-      cardListener.onConnected(new NFCCardChannel(isoDep));
-    }
-
-    isRunning = false;
-  }
-
-  /**
-   * Reacts on card disconnected by calling the callback of the registered listener.
+   * Enables extended length APDUs on the channels created by this manager, if the NFC controller supports them. Only
+   * enable this if the cards being used support extended length APDUs too.
+   *
+   * @param extendedLength whether extended length APDUs should be used
    */
-  private void onCardDisconnected() {
-    isRunning = false;
-    isoDep = null;
-    if (cardListener != null) {
-      cardListener.onDisconnected();
-    }
+  public void setExtendedLength(boolean extendedLength) {
+    this.extendedLength = extendedLength;
   }
 
   /**
@@ -121,5 +165,6 @@ public class NFCCardManager extends Thread implements NfcAdapter.ReaderCallback
    */
   public void setCardListener(CardListener listener) {
     cardListener = listener;
+    tracker.setCardListener(listener);
   }
 }
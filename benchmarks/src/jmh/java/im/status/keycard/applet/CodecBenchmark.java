@@ -0,0 +1,69 @@
+package im.status.keycard.applet;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of key paths and of the TLV responses of the card.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CodecBenchmark {
+  @Param({"m/44'/60'/0'/0/0", "m/43'/60'/1581'/0'/0/1/2/3/4/5"})
+  public String path;
+
+  private byte[] selectResponse;
+  private byte[] keyTemplate;
+  private byte[] statusResponse;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    KeycardSimulator card = new KeycardSimulator();
+    card.setPairingPasswordPBKDF2IterationCount(1);
+    KeycardCommandSet cmdSet = new KeycardCommandSet(card);
+    cmdSet.select().checkOK();
+    cmdSet.init("123456", "123456789012", "benchmark").checkOK();
+    cmdSet.select().checkOK();
+    cmdSet.autoPair("benchmark");
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.verifyPIN("123456").checkAuthOK();
+    cmdSet.generateKey().checkOK();
+
+    selectResponse = cmdSet.select().checkOK().getData();
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.verifyPIN("123456").checkAuthOK();
+    keyTemplate = cmdSet.exportKey("m/43'/60'/1581'/0'/0", false, false).checkOK().getData();
+    statusResponse = cmdSet.getStatus(KeycardCommandSet.GET_STATUS_P1_APPLICATION).checkOK().getData();
+  }
+
+  @Benchmark
+  public KeyPath parseKeyPath() {
+    return new KeyPath(path);
+  }
+
+  @Benchmark
+  public String formatKeyPath() {
+    return new KeyPath(new KeyPath(path).getData()).toString();
+  }
+
+  @Benchmark
+  public ApplicationInfo parseApplicationInfo() {
+    return new ApplicationInfo(selectResponse);
+  }
+
+  @Benchmark
+  public BIP32KeyPair parseKeyTemplate() {
+    return BIP32KeyPair.fromTLV(keyTemplate);
+  }
+
+  @Benchmark
+  public ApplicationStatus parseApplicationStatus() {
+    return new ApplicationStatus(statusResponse);
+  }
+}
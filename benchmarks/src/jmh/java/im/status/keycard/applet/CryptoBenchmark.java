@@ -0,0 +1,68 @@
+package im.status.keycard.applet;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cryptographic operations performed on the host, outside of the secure channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+  private static final String MNEMONIC = "abandon abandon abandon abandon abandon abandon abandon abandon abandon abandon abandon about";
+
+  private byte[] message;
+  private byte[] hash;
+  private byte[] signature;
+  private byte[] privateKey;
+  private byte[] chainCode;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    message = "Keycard benchmark message".getBytes();
+    hash = Hex.decode("c89efdaa54c0f20c7adf612882df0950f5a951637e0307cdcb4c672f298b8bc6");
+
+    BIP32KeyPair master = BIP32KeyPair.fromBinarySeed(Mnemonic.toBinarySeed(MNEMONIC, ""));
+    privateKey = master.getPrivateKey();
+    chainCode = master.getChainCode();
+
+    KeycardSimulator card = new KeycardSimulator();
+    card.setPairingPasswordPBKDF2IterationCount(1);
+    KeycardCommandSet cmdSet = new KeycardCommandSet(card);
+    cmdSet.select().checkOK();
+    cmdSet.init("123456", "123456789012", "benchmark").checkOK();
+    cmdSet.select().checkOK();
+    cmdSet.autoPair("benchmark");
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.verifyPIN("123456").checkAuthOK();
+    cmdSet.loadKey(master).checkOK();
+    signature = cmdSet.sign(hash).checkOK().getData();
+  }
+
+  @Benchmark
+  public byte[] blsHash() {
+    return BLS.hash(message);
+  }
+
+  @Benchmark
+  public RecoverableSignature recoverSignature() {
+    return new RecoverableSignature(hash, signature);
+  }
+
+  @Benchmark
+  public BIP32KeyPair publicKeyCalculation() {
+    return new BIP32KeyPair(privateKey, chainCode, null);
+  }
+
+  @Benchmark
+  public byte[] mnemonicToBinarySeed() {
+    return Mnemonic.toBinarySeed(MNEMONIC, "");
+  }
+}
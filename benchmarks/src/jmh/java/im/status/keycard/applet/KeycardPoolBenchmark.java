@@ -0,0 +1,81 @@
+package im.status.keycard.applet;
+
+import im.status.keycard.io.APDUResponse;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the signing throughput of a KeycardPool of simulated cards all holding the same key. Each operation submits
+ * a batch of signing jobs routed by key UID and waits for all of them, so the score shows how the throughput scales
+ * with the number of cards. Since the simulator is CPU bound, scaling stops at the number of available cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeycardPoolBenchmark {
+  private static final int BATCH_SIZE = 64;
+
+  @Param({"1", "2", "4"})
+  public int cards;
+
+  private KeycardPool pool;
+  private KeycardPool.CardSelector selector;
+  private byte[] hash;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    SecureRandom random = new SecureRandom();
+    byte[] seed = new byte[64];
+    random.nextBytes(seed);
+    hash = new byte[32];
+    random.nextBytes(hash);
+
+    pool = new KeycardPool(BATCH_SIZE);
+
+    for (int i = 0; i < cards; i++) {
+      KeycardSimulator card = new KeycardSimulator(random);
+      card.setPairingPasswordPBKDF2IterationCount(1);
+
+      KeycardCommandSet cmdSet = new KeycardCommandSet(card, new SecureChannelSession(random));
+      cmdSet.select().checkOK();
+      cmdSet.init("123456", "123456789012", "benchmark").checkOK();
+      cmdSet.select().checkOK();
+      cmdSet.autoPair("benchmark");
+      cmdSet.autoOpenSecureChannel();
+      cmdSet.verifyPIN("123456").checkAuthOK();
+      cmdSet.loadKey(seed).checkOK();
+
+      cmdSet.select().checkOK();
+      cmdSet.autoOpenSecureChannel();
+      cmdSet.verifyPIN("123456").checkAuthOK();
+      pool.add(cmdSet);
+    }
+
+    selector = KeycardPool.keyUID(pool.getMembers().get(0).getApplicationInfo().getKeyUID());
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void sign() throws Exception {
+    @SuppressWarnings("unchecked")
+    CompletableFuture<APDUResponse>[] futures = new CompletableFuture[BATCH_SIZE];
+
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      futures[i] = pool.submit(selector, cmdSet -> cmdSet.sign(hash).checkOK());
+    }
+
+    CompletableFuture.allOf(futures).get();
+  }
+}
@@ -0,0 +1,59 @@
+package im.status.keycard.applet;
+
+import im.status.keycard.io.APDUCommand;
+import im.status.keycard.io.APDUResponse;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the host side of the secure channel. The round-trip benchmark runs against the KeycardSimulator, so it also
+ * includes the card side, which performs the same AES and CMAC operations on the same amount of data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SecureChannelBenchmark {
+  @Param({"0", "32", "223"})
+  public int payloadLength;
+
+  private KeycardSimulator card;
+  private SecureChannelSession session;
+  private byte[] payload;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    SecureRandom random = new SecureRandom();
+    card = new KeycardSimulator(random);
+    card.setPairingPasswordPBKDF2IterationCount(1);
+    session = new SecureChannelSession(random);
+
+    KeycardCommandSet cmdSet = new KeycardCommandSet(card, session);
+    cmdSet.select().checkOK();
+    cmdSet.init("123456", "123456789012", "benchmark").checkOK();
+    cmdSet.select().checkOK();
+    cmdSet.autoPair("benchmark");
+    cmdSet.autoOpenSecureChannel();
+    cmdSet.verifyPIN("123456").checkAuthOK();
+
+    payload = new byte[payloadLength];
+    random.nextBytes(payload);
+  }
+
+  @Benchmark
+  public APDUCommand protectedCommand() {
+    return session.protectedCommand(0x80, KeycardCommandSet.INS_STORE_DATA, KeycardCommandSet.STORE_DATA_P1_PUBLIC, 0, payload);
+  }
+
+  @Benchmark
+  public APDUResponse transmit() throws IOException {
+    APDUCommand cmd = session.protectedCommand(0x80, KeycardCommandSet.INS_STORE_DATA, KeycardCommandSet.STORE_DATA_P1_PUBLIC, 0, payload);
+    return session.transmit(card, cmd);
+  }
+}
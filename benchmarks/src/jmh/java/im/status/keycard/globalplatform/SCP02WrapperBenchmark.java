@@ -0,0 +1,35 @@
+package im.status.keycard.globalplatform;
+
+import im.status.keycard.io.APDUCommand;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the SCP02 C-MAC calculation, which is done for each command sent during applet installation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SCP02WrapperBenchmark {
+  @Param({"0", "239"})
+  public int dataLength;
+
+  private SCP02Wrapper wrapper;
+  private APDUCommand cmd;
+
+  @Setup
+  public void setup() {
+    Security.addProvider(new BouncyCastleProvider());
+
+    wrapper = new SCP02Wrapper(new byte[16]);
+    cmd = new APDUCommand(0x80, 0xE8, 0x00, 0x00, new byte[dataLength]);
+  }
+
+  @Benchmark
+  public APDUCommand wrap() {
+    return wrapper.wrap(cmd);
+  }
+}
@@ -0,0 +1,87 @@
+package im.status.keycard.io;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of the CardConnectionTracker callbacks with a fake tag source. The source taps a tag from its
+ * own thread, like the NFC reader thread, and the listener sends a command, after which the tag is removed and the next
+ * command fails. Each operation waits for onConnected and then for onDisconnected.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CardConnectionTrackerBenchmark {
+  private ExecutorService tagSource;
+  private CardConnectionTracker tracker;
+  private Semaphore connected;
+  private Semaphore disconnected;
+  private APDUCommand cmd;
+
+  @Setup
+  public void setup() {
+    tagSource = Executors.newSingleThreadExecutor();
+    tracker = new CardConnectionTracker();
+    connected = new Semaphore(0);
+    disconnected = new Semaphore(0);
+    cmd = new APDUCommand(0x80, 0xF2, 0, 0, new byte[0]);
+
+    tracker.setCardListener(new CardListener() {
+      @Override
+      public void onConnected(CardChannel channel) {
+        connected.release();
+
+        try {
+          channel.send(cmd);
+          channel.send(cmd);
+        } catch (IOException e) {
+          // the tag has been removed
+        }
+      }
+
+      @Override
+      public void onDisconnected() {
+        disconnected.release();
+      }
+    });
+  }
+
+  @TearDown
+  public void tearDown() {
+    tagSource.shutdownNow();
+  }
+
+  @Benchmark
+  public void tapAndRemove() throws InterruptedException {
+    tagSource.execute(() -> tracker.onCardConnected(new FakeTag()));
+    connected.acquire();
+    disconnected.acquire();
+  }
+
+  /**
+   * A tag answering a single command before being removed.
+   */
+  private static class FakeTag implements CardChannel {
+    private boolean present = true;
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      if (!present) {
+        throw new IOException("Tag was lost");
+      }
+
+      present = false;
+      return new APDUResponse(new byte[] {(byte) 0x90, 0x00});
+    }
+
+    @Override
+    public boolean isConnected() {
+      return present;
+    }
+  }
+}
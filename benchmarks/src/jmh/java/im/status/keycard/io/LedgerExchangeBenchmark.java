@@ -0,0 +1,78 @@
+package im.status.keycard.io;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a complete LedgerExchange over 20 bytes frames against a simulated GATT peer. The peer acknowledges writes
+ * with response after the given delay, standing for the connection interval, and writes without response as soon as
+ * they are queued. Once the command is complete, it notifies the frames of the response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LedgerExchangeBenchmark {
+  private static final int SEGMENT_SIZE = 20;
+
+  @Param({"1", "4"})
+  public int window;
+
+  @Param({"0", "1000"})
+  public int ackDelayMicros;
+
+  private ScheduledExecutorService peer;
+  private APDUCommand cmd;
+  private byte[] chunk;
+  private byte[][] responseFrames;
+
+  @Setup
+  public void setup() {
+    peer = Executors.newSingleThreadScheduledExecutor();
+    cmd = new APDUCommand(0x80, 0xC0, 0x00, 0x01, new byte[255]);
+    chunk = new byte[SEGMENT_SIZE];
+    responseFrames = LedgerFrames.frame(new byte[67], SEGMENT_SIZE, false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    peer.shutdownNow();
+  }
+
+  @Benchmark
+  public APDUResponse exchange() throws Exception {
+    GattPeer gatt = new GattPeer();
+    gatt.exchange = new LedgerExchange(cmd, chunk, false, 2000, window, gatt);
+    return gatt.exchange.start().get();
+  }
+
+  private class GattPeer implements LedgerChunkWriter.Transport {
+    private final LedgerFrameDecoder decoder = new LedgerFrameDecoder(false);
+    private LedgerExchange exchange;
+
+    @Override
+    public boolean write(byte[] chunk, boolean withResponse) {
+      byte[] frame = chunk.clone();
+      peer.schedule(() -> receive(frame), withResponse ? ackDelayMicros : 0, TimeUnit.MICROSECONDS);
+      return true;
+    }
+
+    private void receive(byte[] frame) {
+      try {
+        boolean complete = decoder.decode(frame, 0, frame.length);
+        exchange.onWriteComplete();
+
+        if (complete) {
+          for (byte[] rsp : responseFrames) {
+            exchange.onChunkReceived(rsp);
+          }
+        }
+      } catch (IOException e) {
+        exchange.fail(e);
+      }
+    }
+  }
+}
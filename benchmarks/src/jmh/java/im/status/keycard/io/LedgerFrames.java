@@ -0,0 +1,43 @@
+package im.status.keycard.io;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Frames data for the Ledger transport, as the device does for its responses.
+ */
+class LedgerFrames {
+  private LedgerFrames() {}
+
+  static byte[][] frame(byte[] data, int segmentSize, boolean channelInfo) {
+    List<byte[]> frames = new ArrayList<>();
+    int off = 0;
+
+    do {
+      int sequenceIdx = frames.size();
+      byte[] frame = new byte[segmentSize];
+      int pos = 0;
+
+      if (channelInfo) {
+        frame[pos++] = (byte) (LedgerUtil.LEDGER_DEFAULT_CHANNEL >> 8);
+        frame[pos++] = (byte) LedgerUtil.LEDGER_DEFAULT_CHANNEL;
+      }
+
+      frame[pos++] = LedgerUtil.TAG_APDU;
+      frame[pos++] = (byte) (sequenceIdx >> 8);
+      frame[pos++] = (byte) sequenceIdx;
+
+      if (sequenceIdx == 0) {
+        frame[pos++] = (byte) (data.length >> 8);
+        frame[pos++] = (byte) data.length;
+      }
+
+      int len = Math.min(segmentSize - pos, data.length - off);
+      System.arraycopy(data, off, frame, pos, len);
+      off += len;
+      frames.add(frame);
+    } while (off < data.length);
+
+    return frames.toArray(new byte[0][]);
+  }
+}
@@ -0,0 +1,54 @@
+package im.status.keycard.io;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the framing of commands and the reassembly of responses done by LedgerUtil, with a transport callback which
+ * discards the written chunks and serves the frames of a prepared response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LedgerUtilBenchmark {
+  private static final int SEGMENT_SIZE = 64;
+
+  @Param({"0", "255"})
+  public int dataLength;
+
+  @Param({"true", "false"})
+  public boolean channelInfo;
+
+  private APDUCommand cmd;
+  private byte[] chunk;
+  private byte[][] responseFrames;
+  private LedgerUtil.Callback callback;
+
+  @Setup
+  public void setup() {
+    cmd = new APDUCommand(0x80, 0xC0, 0x00, 0x01, new byte[dataLength]);
+    chunk = new byte[SEGMENT_SIZE];
+    responseFrames = LedgerFrames.frame(new byte[dataLength + 2], SEGMENT_SIZE, channelInfo);
+
+    callback = new LedgerUtil.Callback() {
+      private int next;
+
+      @Override
+      public void write(byte[] chunk) {
+        next = 0;
+      }
+
+      @Override
+      public void read(byte[] chunk) {
+        System.arraycopy(responseFrames[next++], 0, chunk, 0, SEGMENT_SIZE);
+      }
+    };
+  }
+
+  @Benchmark
+  public APDUResponse send() throws IOException {
+    return LedgerUtil.send(cmd, chunk, channelInfo, callback);
+  }
+}
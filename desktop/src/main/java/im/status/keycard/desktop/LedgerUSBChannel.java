@@ -3,24 +3,60 @@ package im.status.keycard.desktop;
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUResponse;
 import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.CardTimeoutException;
+import im.status.keycard.io.Deadline;
 import im.status.keycard.io.LedgerUtil;
 import org.hid4java.HidDevice;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class LedgerUSBChannel implements CardChannel {
   private static final int HID_BUFFER_SIZE = 64;
   private static final int READ_TIMEOUT = 20000;
 
   private HidDevice hidDevice;
+  private final byte[] report;
+  private final ThreadPoolExecutor ioExecutor;
+  private volatile boolean closed;
 
   public LedgerUSBChannel(HidDevice hidDevice) {
     this.hidDevice = hidDevice;
+    this.report = new byte[HID_BUFFER_SIZE];
+    this.ioExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "ledger-usb-" + hidDevice.getPath());
+      t.setDaemon(true);
+      return t;
+    });
+    this.ioExecutor.allowCoreThreadTimeOut(true);
   }
 
   @Override
   public APDUResponse send(APDUCommand cmd) throws IOException {
-    return LedgerUtil.send(cmd, HID_BUFFER_SIZE, true, new LedgerUtil.Callback() {
+    return send(cmd, Deadline.NONE);
+  }
+
+  /**
+   * Sends the command, bounding each HID read by the time left before the deadline instead of the default read
+   * timeout.
+   *
+   * @param cmd the command to send
+   * @param deadline the deadline
+   * @return the card response
+   * @throws IOException communication error, or CardTimeoutException if no report was received in time
+   */
+  @Override
+  public synchronized APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    if (closed) {
+      throw new IOException("Device closed");
+    }
+
+    deadline.check();
+
+    return LedgerUtil.send(cmd, report, true, new LedgerUtil.Callback() {
       @Override
       public void write(byte[] chunk) throws IOException {
         if (hidDevice.write(chunk, chunk.length, (byte) 0x00) < 0) {
@@ -30,16 +66,47 @@ public class LedgerUSBChannel implements CardChannel {
 
       @Override
       public void read(byte[] chunk) throws IOException {
-        if (hidDevice.read(chunk, READ_TIMEOUT) < 0) {
+        int timeout = deadline.remainingMillis(READ_TIMEOUT);
+
+        if (timeout == 0) {
+          throw new CardTimeoutException("No response before the deadline");
+        }
+
+        int read = hidDevice.read(chunk, timeout);
+
+        if (read < 0) {
           throw new IOException("Read failed");
+        } else if (read == 0) {
+          throw new CardTimeoutException("Read timeout");
         }
       }
     });
   }
 
+  /**
+   * Sends the command on the I/O thread dedicated to this device. HID reads can only be performed by blocking, so
+   * instead of borrowing a thread from the shared pool for each command, all exchanges with the device are queued on
+   * its own thread and performed in the order this method is called.
+   *
+   * @param cmd the command to send
+   * @return the future card response
+   */
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    return sendAsync(cmd, ioExecutor);
+  }
+
   @Override
   public boolean isConnected() {
-    return hidDevice.isOpen();
+    return !closed && hidDevice.isOpen();
+  }
+
+  /**
+   * Closes the device once the exchange in progress, if any, is over. Commands sent afterwards fail.
+   */
+  synchronized void close() {
+    closed = true;
+    hidDevice.close();
   }
 
   @Override
@@ -5,22 +5,74 @@ import im.status.keycard.io.CardListener;
 import org.hid4java.*;
 import org.hid4java.event.HidServicesEvent;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Manages the connection of Ledger devices over USB HID. All attached devices matching the Ledger VID and PIDs, and
+ * the serial number if one is given, are connected at the same time through their APDU interface, the other HID
+ * interfaces of the devices, like U2F, being ignored. Each device has its own LedgerUSBChannel, so several devices can
+ * be driven in parallel, for example by adding each of them to a KeycardPool.
+ *
+ * The callbacks of each device are called in order on a thread dedicated to the device, so a listener running a long
+ * session in onConnected does not delay the other devices. The exchanges with a device are performed on its own I/O
+ * thread when using sendAsync.
+ */
 public class LedgerUSBManager implements HidServicesListener {
   static {
     Crypto.addBouncyCastleProvider();
   }
 
+  /**
+   * Provides the listener receiving the events of a device.
+   */
+  public interface CardListenerFactory {
+    /**
+     * Called when a device is attached. The returned listener receives the connection events of this device until it
+     * is detached.
+     *
+     * @param hidDevice the device
+     * @return the listener for the device, or null to ignore the device
+     */
+    CardListener getCardListener(HidDevice hidDevice);
+  }
+
   private static final int VID = 0x2c97;
   private static final int[] PIDS = { 0x0001, 0x0004 };
+  private static final int APDU_USAGE_PAGE = 0xffa0;
+  private static final int APDU_INTERFACE = 0;
 
   private static final int SCAN_INTERVAL_MS = 500;
   private static final int PAUSE_INTERVAL_MS = 5000;
 
-  private HidServices hidServices;
-  private CardListener listener;
+  private final HidServices hidServices;
+  private final CardListenerFactory listenerFactory;
+  private final String serialNumber;
+  private final Map<String, Device> devices;
 
+  /**
+   * Constructs a manager sending the events of all Ledger devices to the given listener.
+   *
+   * @param listener the listener
+   */
   public LedgerUSBManager(CardListener listener) {
-    this.listener = listener;
+    this(null, hidDevice -> listener);
+  }
+
+  /**
+   * Constructs a manager for the Ledger devices with the given serial number.
+   *
+   * @param serialNumber the serial number, or null for all devices
+   * @param listenerFactory provides the listener of each device
+   */
+  public LedgerUSBManager(String serialNumber, CardListenerFactory listenerFactory) {
+    this.serialNumber = serialNumber;
+    this.listenerFactory = listenerFactory;
+    this.devices = new HashMap<>();
 
     HidServicesSpecification hidServicesSpecification = new HidServicesSpecification();
     hidServicesSpecification.setAutoShutdown(true);
@@ -32,31 +84,55 @@ public class LedgerUSBManager implements HidServicesListener {
     hidServices.addHidServicesListener(this);
   }
 
+  /**
+   * Starts monitoring the devices. The devices already attached are reported as connected.
+   */
   public void start() {
     hidServices.start();
 
-    for (int pid : PIDS) {
-      HidDevice hidDevice = hidServices.getHidDevice(VID, pid, null);
-
-      if (hidDevice != null) {
-        listener.onConnected(new LedgerUSBChannel(hidDevice));
-        break;
-      }
+    for (HidDevice hidDevice : hidServices.getAttachedHidDevices()) {
+      attach(hidDevice);
     }
   }
 
+  /**
+   * Stops monitoring the devices. Connected devices are closed and reported as disconnected.
+   */
   public void stop() {
     hidServices.shutdown();
-  }
 
-  @Override
-  public void hidDeviceAttached(HidServicesEvent event) {
-    HidDevice hidDevice = event.getHidDevice();
+    List<Device> removed;
+
+    synchronized (devices) {
+      removed = new ArrayList<>(devices.values());
+      devices.clear();
+    }
+
+    for (Device device : removed) {
+      device.detach();
+    }
+  }
 
-    if (isLedger(hidDevice)) {
-      listener.onConnected(new LedgerUSBChannel(hidDevice));
+  /**
+   * Returns the channels of the devices currently connected.
+   *
+   * @return the channels
+   */
+  public List<LedgerUSBChannel> getChannels() {
+    List<LedgerUSBChannel> channels = new ArrayList<>();
+
+    synchronized (devices) {
+      for (Device device : devices.values()) {
+        channels.add(device.channel);
+      }
     }
 
+    return channels;
+  }
+
+  @Override
+  public void hidDeviceAttached(HidServicesEvent event) {
+    attach(event.getHidDevice());
   }
 
   @Override
@@ -66,18 +142,84 @@ public class LedgerUSBManager implements HidServicesListener {
 
   @Override
   public void hidFailure(HidServicesEvent event) {
-    if (isLedger(event.getHidDevice())) {
-      listener.onDisconnected();
+    Device device;
+
+    synchronized (devices) {
+      device = devices.remove(event.getHidDevice().getPath());
+    }
+
+    if (device != null) {
+      device.detach();
+    }
+  }
+
+  private void attach(HidDevice hidDevice) {
+    if (!isLedger(hidDevice)) {
+      return;
+    }
+
+    synchronized (devices) {
+      if (devices.containsKey(hidDevice.getPath())) {
+        return;
+      }
+
+      CardListener listener = listenerFactory.getCardListener(hidDevice);
+
+      if (listener == null || (!hidDevice.isOpen() && !hidDevice.open())) {
+        return;
+      }
+
+      Device device = new Device(hidDevice, listener);
+      devices.put(hidDevice.getPath(), device);
+      device.attach();
     }
   }
 
   private boolean isLedger(HidDevice hidDevice) {
+    // a Ledger exposes several HID interfaces, including U2F, only the generic one carries APDUs. Some platforms do
+    // not report the usage page, the interface number identifies it there
+    if (hidDevice.getUsagePage() != APDU_USAGE_PAGE && hidDevice.getInterfaceNumber() != APDU_INTERFACE) {
+      return false;
+    }
+
     for (int pid : PIDS) {
-      if (hidDevice.isVidPidSerial(VID, pid, null)) {
+      if (hidDevice.isVidPidSerial(VID, pid, serialNumber)) {
         return true;
       }
     }
 
     return false;
   }
+
+  /**
+   * An attached device, with its channel and the thread calling its listener.
+   */
+  private static class Device {
+    final LedgerUSBChannel channel;
+    final CardListener listener;
+    final ExecutorService events;
+
+    Device(HidDevice hidDevice, CardListener listener) {
+      this.channel = new LedgerUSBChannel(hidDevice);
+      this.listener = listener;
+      this.events = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ledger-usb-events-" + hidDevice.getPath());
+        t.setDaemon(true);
+        return t;
+      });
+    }
+
+    void attach() {
+      events.execute(() -> listener.onConnected(channel));
+    }
+
+    void detach() {
+      events.execute(() -> {
+        channel.close();
+        listener.onDisconnected();
+      });
+
+      events.shutdown();
+    }
+  }
 }
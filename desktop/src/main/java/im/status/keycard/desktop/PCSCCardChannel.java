@@ -3,12 +3,22 @@ package im.status.keycard.desktop;
 import im.status.keycard.globalplatform.Crypto;
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUResponse;
+import im.status.keycard.io.APDUWrapper;
 import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.CardExecutors;
+import im.status.keycard.io.CardTimeoutException;
+import im.status.keycard.io.Deadline;
 
 import javax.smartcardio.CardException;
-import javax.smartcardio.CommandAPDU;
-import javax.smartcardio.ResponseAPDU;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of a CardChannel using the Java Smartcard I/O API,
@@ -19,32 +29,260 @@ public class PCSCCardChannel implements CardChannel {
   }
 
   private javax.smartcardio.CardChannel cardChannel;
+  private final int maxTransceiveLength;
+  private final ByteBuffer commandBuffer;
+  private final byte[] responseBytes;
+  private final ByteBuffer responseBuffer;
+  private final boolean reuseResponseBuffer;
+  private final ReentrantLock lock;
+  private volatile boolean aborted;
 
   /**
    * Constructor. Wraps a Java Smartcard I/O CardChannel.
    * @param cardChannel the card channel to wrap.
    */
   public PCSCCardChannel(javax.smartcardio.CardChannel cardChannel) {
+    this(cardChannel, APDUCommand.MAX_SHORT_LENGTH);
+  }
+
+  /**
+   * Constructor. Wraps a Java Smartcard I/O CardChannel, allowing APDUs up to the given length. Passing a length
+   * larger than APDUCommand.MAX_SHORT_LENGTH enables extended length APDUs, which must be supported by both the reader
+   * and the card.
+   *
+   * @param cardChannel the card channel to wrap.
+   * @param maxTransceiveLength the maximum length of a serialized APDU
+   */
+  public PCSCCardChannel(javax.smartcardio.CardChannel cardChannel, int maxTransceiveLength) {
+    this(cardChannel, maxTransceiveLength, false);
+  }
+
+  /**
+   * Constructor. Wraps a Java Smartcard I/O CardChannel, allowing APDUs up to the given length, and optionally returning
+   * responses backed by a buffer reused for every exchange instead of copying each of them.
+   *
+   * A reused response is only valid until the next command is sent on this channel, by any thread and including with
+   * sendAsync, so it must be fully read, or copied, before that. Responses returned by sendBatch are always copied.
+   * The JDK still copies each exchange internally, the reuse only avoids the copy made by this channel.
+   *
+   * @param cardChannel the card channel to wrap.
+   * @param maxTransceiveLength the maximum length of a serialized APDU
+   * @param reuseResponseBuffer true to return responses backed by a reused buffer
+   */
+  public PCSCCardChannel(javax.smartcardio.CardChannel cardChannel, int maxTransceiveLength, boolean reuseResponseBuffer) {
     this.cardChannel = cardChannel;
+    this.maxTransceiveLength = Math.min(maxTransceiveLength, APDUCommand.MAX_EXTENDED_LENGTH);
+    this.reuseResponseBuffer = reuseResponseBuffer;
+
+    // even with short APDUs, over T=0 the JDK follows 61xx with GET RESPONSE and returns the joined data, which can be
+    // well beyond 256 bytes, so the buffer is always large enough for the longest response
+    this.commandBuffer = ByteBuffer.allocateDirect(this.maxTransceiveLength);
+    this.responseBytes = new byte[APDUCommand.MAX_EXTENDED_NE + 2];
+    this.responseBuffer = ByteBuffer.wrap(responseBytes);
+    this.lock = new ReentrantLock();
   }
 
   @Override
   public APDUResponse send(APDUCommand cmd) throws IOException {
-    CommandAPDU capdu = new CommandAPDU(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData(), cmd.getNeedsLE() ? 0x100 : 0x00);
+    lock.lock();
+
+    try {
+      return transmit(cmd);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sends the command, aborting the exchange if the card has not answered by the deadline. PC/SC has no timeout on
+   * transmit, so when the deadline expires the card is reset and disconnected with Card.disconnect(true), which makes
+   * the pending transmit fail, and the channel becomes unusable: all further commands fail with an IOException and a
+   * new channel must be opened. The JDK only lets the thread holding an exclusive transaction disconnect the card, so
+   * within a transaction the disconnection happens when the transmit returns. Other threads waiting to send give up at
+   * their own deadline instead of waiting for the stuck exchange.
+   *
+   * @param cmd the command to send
+   * @param deadline the deadline
+   * @return the card response
+   * @throws CardTimeoutException if the deadline expired before the response was received
+   * @throws IOException communication error
+   */
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    if (!deadline.isFinite()) {
+      return send(cmd);
+    }
+
+    deadline.check();
+
+    try {
+      if (!lock.tryLock(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS)) {
+        throw new CardTimeoutException("The channel is busy");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("send interrupted", e);
+    }
+
+    AtomicBoolean expired = new AtomicBoolean();
+
+    try {
+      deadline.check();
+
+      // disconnecting can block until the stuck transmit returns, so it does not run on the shared timer thread
+      ScheduledFuture<?> watchdog = CardExecutors.schedule(() -> {
+        expired.set(true);
+        CardExecutors.execute(this::abort);
+      }, deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+
+      APDUResponse resp;
+
+      try {
+        resp = transmit(cmd);
+      } finally {
+        watchdog.cancel(false);
+      }
+
+      if (expired.get()) {
+        throw new CardTimeoutException("No response before the deadline");
+      }
+
+      return resp;
+    } catch (IOException e) {
+      if (expired.get() && !(e instanceof CardTimeoutException)) {
+        throw new CardTimeoutException("No response before the deadline", e);
+      }
+
+      throw e;
+    } finally {
+      if (expired.get()) {
+        abort();
+      }
+
+      lock.unlock();
+    }
+  }
+
+  private void abort() {
+    aborted = true;
+
+    try {
+      cardChannel.getCard().disconnect(true);
+    } catch (CardException | RuntimeException e) {
+      // already disconnected, or the exclusive transaction of the sending thread prevents it until the transmit returns
+    }
+  }
+
+  private APDUResponse transmit(APDUCommand cmd) throws IOException {
+    if (aborted) {
+      throw new IOException("The card has been disconnected after a timeout");
+    }
+
+    commandBuffer.clear();
+    cmd.serialize(commandBuffer);
+    commandBuffer.flip();
+    responseBuffer.clear();
+
+    try {
+      cardChannel.transmit(commandBuffer, responseBuffer);
+    } catch (CardException | BufferOverflowException e) {
+      throw new IOException(e);
+    }
+
+    if (reuseResponseBuffer) {
+      return new APDUResponse(responseBytes, 0, responseBuffer.position());
+    }
+
+    return new APDUResponse(Arrays.copyOf(responseBytes, responseBuffer.position()));
+  }
+
+  /**
+   * Sends the batch within a PC/SC exclusive transaction, so that no other application can interleave its commands.
+   * When the response buffer is reused, each response is copied before the next command is sent.
+   *
+   * @param cmds the commands to send
+   * @param wrapper the wrapper, or null to send the commands as they are
+   * @return the unwrapped card responses
+   * @throws IOException communication error
+   */
+  @Override
+  public List<APDUResponse> sendBatch(List<APDUCommand> cmds, APDUWrapper wrapper) throws IOException {
+    APDUWrapper batchWrapper = wrapper;
+
+    if (reuseResponseBuffer) {
+      batchWrapper = new APDUWrapper() {
+        @Override
+        public APDUCommand wrap(APDUCommand cmd) throws IOException {
+          return wrapper != null ? wrapper.wrap(cmd) : cmd;
+        }
+
+        @Override
+        public APDUResponse unwrap(APDUResponse resp) throws IOException {
+          int off = resp.getDataOffset();
+          APDUResponse copy = new APDUResponse(Arrays.copyOfRange(resp.getBuffer(), off, off + resp.getDataLength() + 2));
+          return wrapper != null ? wrapper.unwrap(copy) : copy;
+        }
+      };
+    }
+
+    beginTransaction();
 
-    ResponseAPDU rapdu;
+    try {
+      return CardChannel.super.sendBatch(cmds, batchWrapper);
+    } finally {
+      endTransaction();
+    }
+  }
+
+  /**
+   * Begins a PC/SC exclusive transaction with beginExclusive, unless the calling thread is already in one. Other
+   * threads sending on this channel wait until the transaction ends.
+   *
+   * @throws IOException the card could not be acquired
+   */
+  @Override
+  public void beginTransaction() throws IOException {
+    lock.lock();
+
+    if (lock.getHoldCount() > 1) {
+      return;
+    }
 
     try {
-      rapdu = cardChannel.transmit(capdu);
-    } catch (CardException e) {
+      cardChannel.getCard().beginExclusive();
+    } catch (CardException | RuntimeException e) {
+      lock.unlock();
       throw new IOException(e);
     }
+  }
+
+  /**
+   * Ends the PC/SC exclusive transaction with endExclusive if this is the outermost transaction of the calling thread.
+   */
+  @Override
+  public void endTransaction() {
+    if (!lock.isHeldByCurrentThread()) {
+      throw new IllegalStateException("No transaction in progress");
+    }
 
-    return new APDUResponse(rapdu.getBytes());
+    try {
+      if (lock.getHoldCount() == 1) {
+        cardChannel.getCard().endExclusive();
+      }
+    } catch (CardException | RuntimeException e) {
+      // the card has been removed or reset, the transaction is over anyway
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return maxTransceiveLength;
   }
 
   @Override
   public boolean isConnected() {
-    return true;
+    return !aborted;
   }
 }
@@ -0,0 +1,300 @@
+package im.status.keycard.desktop;
+
+import im.status.keycard.globalplatform.Crypto;
+import im.status.keycard.io.APDUCommand;
+import im.status.keycard.io.CardListener;
+
+import javax.smartcardio.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Manages the connection of cards in PC/SC readers. A single monitor thread waits for card insertion and removal in
+ * all readers at once using CardTerminals.waitForChange, connects to inserted cards and calls the CardListener of the
+ * reader. Readers plugged or unplugged while the manager runs are detected the next time the monitor wakes up, which
+ * happens at least once per scan interval.
+ *
+ * Callbacks are called in order for each reader, but on a thread other than the monitor thread, so a listener running
+ * a long session in onConnected does not delay the events of other readers.
+ */
+public class PCSCCardManager {
+  static {
+    Crypto.addBouncyCastleProvider();
+  }
+
+  /**
+   * Provides the listener receiving the events of a reader.
+   */
+  public interface CardListenerFactory {
+    /**
+     * Called once when a reader is found. The returned listener receives the connection events of the cards inserted
+     * in this reader until the reader is removed.
+     *
+     * @param terminal the reader
+     * @return the listener for the reader, or null to ignore the reader
+     */
+    CardListener getCardListener(CardTerminal terminal);
+  }
+
+  private static final int SCAN_INTERVAL_MS = 1000;
+
+  private final TerminalFactory terminalFactory;
+  private final CardListenerFactory listenerFactory;
+
+  private int maxTransceiveLength;
+  private volatile Thread monitor;
+  private ExecutorService dispatcher;
+
+  /**
+   * Constructs a manager for the readers of the default TerminalFactory, sending the events of all readers to the
+   * given listener.
+   *
+   * @param listener the listener
+   */
+  public PCSCCardManager(CardListener listener) {
+    this(TerminalFactory.getDefault(), terminal -> listener);
+  }
+
+  /**
+   * Constructs a manager for the readers of the given TerminalFactory.
+   *
+   * @param terminalFactory the terminal factory
+   * @param listenerFactory provides the listener of each reader
+   */
+  public PCSCCardManager(TerminalFactory terminalFactory, CardListenerFactory listenerFactory) {
+    this.terminalFactory = terminalFactory;
+    this.listenerFactory = listenerFactory;
+    this.maxTransceiveLength = APDUCommand.MAX_SHORT_LENGTH;
+  }
+
+  /**
+   * Sets the maximum transceive length of the channels created by this manager. Passing a length larger than
+   * APDUCommand.MAX_SHORT_LENGTH enables extended length APDUs, which must be supported by both the readers and the
+   * cards. Only affects cards connected afterwards.
+   *
+   * @param maxTransceiveLength the maximum length of a serialized APDU
+   */
+  public void setMaxTransceiveLength(int maxTransceiveLength) {
+    this.maxTransceiveLength = maxTransceiveLength;
+  }
+
+  /**
+   * Starts monitoring the readers. Cards already present are reported as connected.
+   */
+  public synchronized void start() {
+    if (monitor != null) {
+      return;
+    }
+
+    dispatcher = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "pcsc-events");
+      t.setDaemon(true);
+      return t;
+    });
+
+    monitor = new Thread(this::monitor, "pcsc-monitor");
+    monitor.setDaemon(true);
+    monitor.start();
+  }
+
+  /**
+   * Stops monitoring the readers. Connected cards are disconnected and reported as such. The monitor thread terminates
+   * within a scan interval.
+   */
+  public synchronized void stop() {
+    Thread t = monitor;
+    monitor = null;
+
+    if (t != null) {
+      t.interrupt();
+    }
+  }
+
+  private void monitor() {
+    Thread self = Thread.currentThread();
+    ExecutorService executor = dispatcher;
+    Map<String, Reader> readers = new HashMap<>();
+    CardTerminals terminals = terminalFactory.terminals();
+
+    try {
+      while (monitor == self) {
+        try {
+          if (update(terminals, readers, executor)) {
+            terminals.waitForChange(SCAN_INTERVAL_MS);
+          } else {
+            Thread.sleep(SCAN_INTERVAL_MS);
+          }
+        } catch (CardException | IllegalStateException e) {
+          // no reader is available or the PC/SC service has been restarted, start over with a new context
+          Thread.sleep(SCAN_INTERVAL_MS);
+          terminals = terminalFactory.terminals();
+        }
+      }
+    } catch (InterruptedException e) {
+      // stopped
+    } finally {
+      for (Reader reader : readers.values()) {
+        reader.disconnect();
+      }
+
+      readers.clear();
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Brings the tracked readers and cards in line with the current state of the terminals.
+   *
+   * @param terminals the terminals
+   * @param readers the tracked readers, by name
+   * @param executor the executor running the callbacks
+   * @return true if at least one reader is present
+   * @throws CardException the terminals could not be listed
+   */
+  private boolean update(CardTerminals terminals, Map<String, Reader> readers, ExecutorService executor) throws CardException {
+    List<CardTerminal> all = terminals.list();
+    Set<String> attached = names(all);
+    Set<String> present = names(terminals.list(CardTerminals.State.CARD_PRESENT));
+    Set<String> removed = names(terminals.list(CardTerminals.State.CARD_REMOVAL));
+
+    Iterator<Map.Entry<String, Reader>> it = readers.entrySet().iterator();
+
+    while (it.hasNext()) {
+      Map.Entry<String, Reader> entry = it.next();
+      Reader reader = entry.getValue();
+
+      if (!attached.contains(entry.getKey())) {
+        reader.disconnect();
+        it.remove();
+      }
+    }
+
+    for (CardTerminal terminal : all) {
+      String name = terminal.getName();
+      Reader reader = readers.get(name);
+
+      if (reader == null) {
+        CardListener listener = listenerFactory.getCardListener(terminal);
+        reader = new Reader(terminal, listener, executor);
+        readers.put(name, reader);
+      }
+
+      // a card swapped between two updates is both removed and present
+      if (removed.contains(name) || !present.contains(name)) {
+        reader.disconnect();
+      }
+
+      if (present.contains(name)) {
+        reader.connect();
+      }
+    }
+
+    return !all.isEmpty();
+  }
+
+  private static Set<String> names(List<CardTerminal> terminals) {
+    Set<String> names = new HashSet<>();
+
+    for (CardTerminal terminal : terminals) {
+      names.add(terminal.getName());
+    }
+
+    return names;
+  }
+
+  /**
+   * The state of a reader. Only accessed by the monitor thread, except for the event queue.
+   */
+  private class Reader {
+    private final CardTerminal terminal;
+    private final CardListener listener;
+    private final ExecutorService executor;
+    private final ArrayDeque<Runnable> events;
+
+    private boolean cardPresent;
+    private Card card;
+    private boolean dispatching;
+
+    Reader(CardTerminal terminal, CardListener listener, ExecutorService executor) {
+      this.terminal = terminal;
+      this.listener = listener;
+      this.executor = executor;
+      this.events = new ArrayDeque<>();
+    }
+
+    void connect() {
+      if (cardPresent) {
+        return;
+      }
+
+      // a card which cannot be connected is not retried until it is removed
+      cardPresent = true;
+
+      if (listener == null) {
+        return;
+      }
+
+      try {
+        card = terminal.connect("*");
+      } catch (CardException e) {
+        return;
+      }
+
+      PCSCCardChannel channel = new PCSCCardChannel(card.getBasicChannel(), maxTransceiveLength);
+      dispatch(() -> listener.onConnected(channel));
+    }
+
+    void disconnect() {
+      cardPresent = false;
+
+      if (card == null) {
+        return;
+      }
+
+      try {
+        card.disconnect(false);
+      } catch (CardException e) {
+        // the card is already gone
+      }
+
+      card = null;
+      dispatch(listener::onDisconnected);
+    }
+
+    private void dispatch(Runnable event) {
+      synchronized (events) {
+        events.add(event);
+
+        if (dispatching) {
+          return;
+        }
+
+        dispatching = true;
+      }
+
+      executor.execute(this::drain);
+    }
+
+    private void drain() {
+      while (true) {
+        Runnable event;
+
+        synchronized (events) {
+          event = events.poll();
+
+          if (event == null) {
+            dispatching = false;
+            return;
+          }
+        }
+
+        try {
+          event.run();
+        } catch (RuntimeException e) {
+          // a failing listener must not prevent the delivery of the next events
+        }
+      }
+    }
+  }
+}
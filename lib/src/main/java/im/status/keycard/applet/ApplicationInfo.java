@@ -34,7 +34,20 @@ public class ApplicationInfo {
    * @throws IllegalArgumentException the TLV does not follow the allowed format
    */
   public ApplicationInfo(byte[] tlvData) throws IllegalArgumentException {
-    TinyBERTLV tlv = new TinyBERTLV(tlvData);
+    this(tlvData, 0, tlvData.length);
+  }
+
+  /**
+   * Constructs an object by parsing the TLV data found in the given slice of the buffer. The buffer is read in place,
+   * so the data field of an APDUResponse can be passed without copying it.
+   *
+   * @param buf the buffer holding the raw response data from the card
+   * @param off the offset of the TLV data
+   * @param len the length of the TLV data
+   * @throws IllegalArgumentException the TLV does not follow the allowed format
+   */
+  public ApplicationInfo(byte[] buf, int off, int len) throws IllegalArgumentException {
+    TinyBERTLV tlv = new TinyBERTLV(buf, off, len);
 
     int topTag = tlv.readTag();
     tlv.unreadLastTag();
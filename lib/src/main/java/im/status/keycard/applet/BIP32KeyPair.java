@@ -47,7 +47,20 @@ public class BIP32KeyPair {
    * @return the BIP32 keypair
    */
   public static BIP32KeyPair fromTLV(byte[] tlvData) {
-    TinyBERTLV tlv = new TinyBERTLV(tlvData);
+    return fromTLV(tlvData, 0, tlvData.length);
+  }
+
+  /**
+   * Constructs a BIP32 keypair from a KEY TEMPLATE TLV found in the given slice of the buffer. The buffer is read in
+   * place, so the data field of an APDUResponse can be passed without copying it.
+   *
+   * @param buf the buffer holding the TLV data
+   * @param off the offset of the TLV data
+   * @param len the length of the TLV data
+   * @return the BIP32 keypair
+   */
+  public static BIP32KeyPair fromTLV(byte[] buf, int off, int len) {
+    TinyBERTLV tlv = new TinyBERTLV(buf, off, len);
     tlv.enterConstructed(TLV_KEY_TEMPLATE);
 
     byte[] pubKey = null;
@@ -18,6 +18,19 @@ public class BLS {
     return new PointG2(g2).toByteArray(true);
   }
 
+  /**
+   * Multiplies a message already hashed to G2 by the secret key reduced modulo the group order. The multiplication is
+   * not constant time, so this is only meant for the KeycardSimulator.
+   *
+   * @param secretKey the secret key
+   * @param g2 the uncompressed G2 point, as returned by hash
+   * @return the uncompressed signature
+   */
+  static byte[] sign(byte[] secretKey, byte[] g2) {
+    BigInteger sk = new BigInteger(1, secretKey).mod(R);
+    return new PointG2(g2).mulUnsafe(sk).toByteArray(false);
+  }
+
   private BLS() {}
 
   final static byte DST[] = {
@@ -35,6 +48,7 @@ public class BLS {
 
   final private static BigInteger P = new BigInteger("1a0111ea397fe69a4b1ba7b6434bacd764774b84f38512bf6730d2a0f6b0f6241eabfffeb153ffffb9feffffffffaaab", 16);
   final private static BigInteger P_MINUS_9_DIV_16 = P.pow(2).subtract(BigInteger.valueOf(9)).divide(BigInteger.valueOf(16));
+  final private static BigInteger R = new BigInteger("73eda753299d7d483339d80809a1d80553bda402fffe5bfeffffffff00000001", 16);
   final private static BigInteger CURVE_X = new BigInteger("d201000000010000", 16);
 
   final private static Fp rv1 = new Fp("6af0e0437ff400b6831e36d6bd17ffe48395dabc2d3435e77f76e17009241c5ee67992f72ec05f4c81084fbede3cc09");
@@ -3,6 +3,8 @@ package im.status.keycard.applet;
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUResponse;
 import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.Deadline;
+import im.status.keycard.io.DeadlineCardChannel;
 
 import java.io.IOException;
 
@@ -10,14 +12,23 @@ import java.io.IOException;
  * Command set for the Cash applet.
  */
 public class CashCommandSet {
-  private final CardChannel apduChannel;
+  private final DeadlineCardChannel apduChannel;
 
   /**
    * Creates a CashCommandSet using the given APDU Channel
    * @param apduChannel APDU channel
    */
   public CashCommandSet(CardChannel apduChannel) {
-    this.apduChannel = apduChannel;
+    this.apduChannel = new DeadlineCardChannel(apduChannel);
+  }
+
+  /**
+   * Sets the deadline of the commands sent from now on by this command set.
+   *
+   * @param deadline the deadline
+   */
+  public void setDeadline(Deadline deadline) {
+    apduChannel.setDeadline(deadline);
   }
 
   /**
@@ -0,0 +1,200 @@
+package im.status.keycard.applet;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of secp256k1 key pairs generated in advance, providing the ephemeral EC-DH keys of the secure channel.
+ * A SecureChannelSession created with a pool takes its key from it when the card is selected, so only the key agreement
+ * with the card key remains to be done while the card is in the field, instead of the key generation too.
+ *
+ * When a key is taken and the number of keys left falls to the low watermark, the pool is refilled up to its depth on
+ * the background executor. If the pool is empty, the key is generated on the calling thread and counted as a miss.
+ * Each key is handed out once. Sessions using a pool cannot be recorded and replayed, since the keys do not come from
+ * the random number generator of the session.
+ */
+public class EphemeralKeyPool {
+  private final int depth;
+  private final int lowWatermark;
+  private final SecureRandom random;
+  private final Executor executor;
+  private final BlockingQueue<AsymmetricCipherKeyPair> keys;
+  private final AtomicBoolean refilling;
+  private final AtomicLong hits;
+  private final AtomicLong misses;
+  private final AtomicLong generated;
+
+  /**
+   * Creates a pool refilled on its own daemon thread when half of its keys have been used. The pool is initially empty,
+   * call prefill or refill to generate the first keys.
+   *
+   * @param depth the maximum number of keys in the pool
+   */
+  public EphemeralKeyPool(int depth) {
+    this(depth, depth / 2, new SecureRandom(), null);
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param depth the maximum number of keys in the pool
+   * @param lowWatermark the number of keys left at or below which the pool is refilled, less than the depth
+   * @param random the random number generator used to generate the keys
+   * @param executor the executor refilling the pool, or null to use a daemon thread owned by the pool
+   */
+  public EphemeralKeyPool(int depth, int lowWatermark, SecureRandom random, Executor executor) {
+    if (depth < 1 || lowWatermark < 0 || lowWatermark >= depth) {
+      throw new IllegalArgumentException("Invalid pool depth or low watermark");
+    }
+
+    this.depth = depth;
+    this.lowWatermark = lowWatermark;
+    this.random = random;
+    this.executor = executor != null ? executor : newRefillExecutor();
+    this.keys = new ArrayBlockingQueue<>(depth);
+    this.refilling = new AtomicBoolean();
+    this.hits = new AtomicLong();
+    this.misses = new AtomicLong();
+    this.generated = new AtomicLong();
+  }
+
+  /**
+   * Takes a key pair from the pool, or generates one on the calling thread if the pool is empty. A refill is started
+   * if the pool falls to its low watermark.
+   *
+   * @return a key pair which has never been handed out before
+   */
+  public AsymmetricCipherKeyPair take() {
+    AsymmetricCipherKeyPair keyPair = keys.poll();
+
+    if (keyPair != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      keyPair = generate(random);
+    }
+
+    if (keys.size() <= lowWatermark) {
+      refill();
+    }
+
+    return keyPair;
+  }
+
+  /**
+   * Starts filling the pool up to its depth on the background executor, unless a refill is already running.
+   */
+  public void refill() {
+    if (!refilling.compareAndSet(false, true)) {
+      return;
+    }
+
+    executor.execute(() -> {
+      try {
+        fill();
+      } finally {
+        refilling.set(false);
+      }
+    });
+  }
+
+  /**
+   * Fills the pool up to its depth on the calling thread.
+   */
+  public void prefill() {
+    fill();
+  }
+
+  /**
+   * Discards all the keys in the pool.
+   */
+  public void clear() {
+    keys.clear();
+  }
+
+  /**
+   * Returns the number of keys available.
+   *
+   * @return the number of keys in the pool
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Returns the maximum number of keys in the pool.
+   *
+   * @return the depth
+   */
+  public int getDepth() {
+    return depth;
+  }
+
+  /**
+   * Returns the number of keys taken from the pool.
+   *
+   * @return the hit count
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * Returns the number of keys generated on the calling thread because the pool was empty.
+   *
+   * @return the miss count
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Returns the number of keys generated to fill the pool.
+   *
+   * @return the number of generated keys
+   */
+  public long getGenerated() {
+    return generated.get();
+  }
+
+  /**
+   * Generates a secp256k1 key pair for EC-DH. The public key is computed with the fixed-base precomputation of the
+   * shared curve parameters.
+   *
+   * @param random the random number generator
+   * @return the key pair
+   */
+  static AsymmetricCipherKeyPair generate(SecureRandom random) {
+    ECKeyPairGenerator g = new ECKeyPairGenerator();
+    g.init(new ECKeyGenerationParameters(RecoverableSignature.CURVE, random));
+    return g.generateKeyPair();
+  }
+
+  private void fill() {
+    while (keys.remainingCapacity() > 0) {
+      if (!keys.offer(generate(random))) {
+        break;
+      }
+
+      generated.incrementAndGet();
+    }
+  }
+
+  private static ExecutorService newRefillExecutor() {
+    return Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "keycard-keygen");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+}
@@ -87,17 +87,112 @@ public class KeycardCommandSet {
 
   static final byte TLV_APPLICATION_INFO_TEMPLATE = (byte) 0xA4;
 
-  private final CardChannel apduChannel;
+  static final int SW_INVALID_PAIRING_INDEX = 0x6A86;
+
+  private final DeadlineCardChannel apduChannel;
   private SecureChannelSession secureChannel;
   private ApplicationInfo info;
+  private int selectedInstanceIdx = Identifiers.KEYCARD_DEFAULT_INSTANCE_IDX;
 
   /**
    * Creates a KeycardCommandSet using the given APDU Channel
    * @param apduChannel APDU channel
    */
   public KeycardCommandSet(CardChannel apduChannel) {
-    this.apduChannel = apduChannel;
-    this.secureChannel = new SecureChannelSession();
+    this(apduChannel, new SecureChannelSession());
+  }
+
+  /**
+   * Creates a KeycardCommandSet using the given APDU Channel and SecureChannel session. Useful to record and replay
+   * sessions, by using a session with the random number generator of a RecordingCardChannel or ReplayCardChannel.
+   *
+   * @param apduChannel APDU channel
+   * @param secureChannel the SecureChannel session
+   */
+  public KeycardCommandSet(CardChannel apduChannel, SecureChannelSession secureChannel) {
+    this.apduChannel = new DeadlineCardChannel(apduChannel);
+    this.secureChannel = secureChannel;
+    setLogicalChannel(secureChannel);
+  }
+
+  /**
+   * Returns the name of the Keycard command with the given CLA and INS, or null if it is not a Keycard command. The
+   * method signature matches MetricsCardChannel.CommandNamer, so it can be used to name the collected metrics. The
+   * logical channel number encoded in the CLA is ignored.
+   *
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @return the command name
+   */
+  public static String getCommandName(int cla, int ins) {
+    if (LogicalCardChannel.setChannelNumber(cla & 0xff, 0) == 0x00) {
+      return ((ins & 0xff) == 0xA4) ? "SELECT" : null;
+    }
+
+    switch ((byte) ins) {
+      case SecureChannelSession.INS_OPEN_SECURE_CHANNEL: return "OPEN_SECURE_CHANNEL";
+      case SecureChannelSession.INS_MUTUALLY_AUTHENTICATE: return "MUTUALLY_AUTHENTICATE";
+      case SecureChannelSession.INS_PAIR: return "PAIR";
+      case SecureChannelSession.INS_UNPAIR: return "UNPAIR";
+      case INS_INIT: return "INIT";
+      case INS_FACTORY_RESET: return "FACTORY_RESET";
+      case INS_GET_STATUS: return "GET_STATUS";
+      case INS_SET_NDEF: return "SET_NDEF";
+      case INS_IDENTIFY_CARD: return "IDENTIFY_CARD";
+      case INS_VERIFY_PIN: return "VERIFY_PIN";
+      case INS_CHANGE_PIN: return "CHANGE_PIN";
+      case INS_UNBLOCK_PIN: return "UNBLOCK_PIN";
+      case INS_LOAD_KEY: return "LOAD_KEY";
+      case INS_DERIVE_KEY: return "DERIVE_KEY";
+      case INS_GENERATE_MNEMONIC: return "GENERATE_MNEMONIC";
+      case INS_REMOVE_KEY: return "REMOVE_KEY";
+      case INS_GENERATE_KEY: return "GENERATE_KEY";
+      case INS_SIGN: return "SIGN";
+      case INS_SET_PINLESS_PATH: return "SET_PINLESS_PATH";
+      case INS_EXPORT_KEY: return "EXPORT_KEY";
+      case INS_GET_DATA: return "GET_DATA";
+      case INS_STORE_DATA: return "STORE_DATA";
+      default: return null;
+    }
+  }
+
+  /**
+   * Returns whether the given Keycard command can be sent again after a communication error left its outcome unknown.
+   * This is the case for commands which only read data, like GET STATUS and EXPORT KEY, for SIGN, since any of the
+   * resulting signatures is valid, and for commands which set a value, since sending them twice has the same effect as
+   * sending them once. Commands generating or erasing data, changing credentials, pairing or counting attempts are not
+   * idempotent: a VERIFY PIN with a wrong PIN must not be repeated, and a CHANGE PIN which might have been executed
+   * invalidates the PIN used to reopen the session. A derivation relative to the current or parent key is not
+   * idempotent either when it makes the derived key current, since repeating it would derive from the new current key.
+   * The command is classified on its header, so protected commands and commands sent on a logical channel can be passed
+   * as they are.
+   *
+   * @param cmd the command
+   * @return true if the command can be safely repeated
+   */
+  public static boolean isIdempotent(APDUCommand cmd) {
+    if (LogicalCardChannel.setChannelNumber(cmd.getCla() & 0xff, 0) == 0x00) {
+      return (cmd.getIns() & 0xff) == 0xA4;
+    }
+
+    int source = cmd.getP1() & 0xC0;
+
+    switch ((byte) cmd.getIns()) {
+      case INS_SIGN:
+      case INS_EXPORT_KEY:
+        return source == DERIVE_P1_SOURCE_MASTER || (cmd.getP1() & 0x3F) != SIGN_P1_DERIVE_AND_MAKE_CURRENT;
+      case INS_DERIVE_KEY:
+        return source == DERIVE_P1_SOURCE_MASTER;
+      case INS_GET_STATUS:
+      case INS_IDENTIFY_CARD:
+      case INS_GET_DATA:
+      case INS_STORE_DATA:
+      case INS_SET_NDEF:
+      case INS_SET_PINLESS_PATH:
+        return true;
+      default:
+        return false;
+    }
   }
 
   /**
@@ -110,12 +205,48 @@ public class KeycardCommandSet {
     return info;
   }
 
+  /**
+   * Returns the channel this command set sends its commands on.
+   *
+   * @return the APDU channel
+   */
+  public CardChannel getChannel() {
+    return apduChannel.getChannel();
+  }
+
+  /**
+   * Sets the deadline of the commands sent from now on by this command set. Use it to bound the duration of an
+   * operation made of several commands, then remove it with Deadline.NONE.
+   *
+   * @param deadline the deadline
+   */
+  public void setDeadline(Deadline deadline) {
+    apduChannel.setDeadline(deadline);
+  }
+
+  /**
+   * Begins an exclusive transaction on the card, so that a sequence of commands, like deriving a key and signing with
+   * it or exporting several keys, is not interleaved with the commands of other applications. Close the returned
+   * transaction to end it.
+   *
+   * @return the transaction
+   * @throws IOException communication error
+   */
+  public CardTransaction beginTransaction() throws IOException {
+    return CardTransaction.begin(apduChannel);
+  }
+
   /**
    * Set the SecureChannel object
    * @param secureChannel secure channel
    */
   protected void setSecureChannel(SecureChannelSession secureChannel) {
     this.secureChannel = secureChannel;
+    setLogicalChannel(secureChannel);
+  }
+
+  private void setLogicalChannel(SecureChannelSession secureChannel) {
+    secureChannel.setLogicalChannel(apduChannel.getChannelNumber());
   }
 
   /**
@@ -158,7 +289,8 @@ public class KeycardCommandSet {
 
 
     if (resp.getSw() == 0x9000) {
-      info = new ApplicationInfo(resp.getData());
+      selectedInstanceIdx = instanceIdx;
+      info = new ApplicationInfo(resp.getBuffer(), resp.getDataOffset(), resp.getDataLength());
 
       if (info.hasSecureChannelCapability()) {
         this.secureChannel.generateSecret(info.getSecureChannelPubKey());
@@ -176,7 +308,76 @@ public class KeycardCommandSet {
    * @throws APDUException secure channel error
    */
   public void autoOpenSecureChannel() throws IOException, APDUException {
-    secureChannel.autoOpenSecureChannel(apduChannel);
+    CardTransaction tx = beginTransaction();
+
+    try {
+      secureChannel.autoOpenSecureChannel(apduChannel);
+    } finally {
+      tx.close();
+    }
+  }
+
+  /**
+   * Opens the secure channel with the pairing kept in the given store for the selected card, pairing with the given
+   * password only if the store has no pairing for the card or if the card rejects it, for example because the pairing
+   * was removed by another client. The new pairing replaces the old one in the store. The card must have been selected
+   * before calling this method.
+   *
+   * @param store the pairing store
+   * @param pairingPassword the pairing password
+   * @throws IOException communication error or the store could not be written
+   * @throws APDUException pairing or secure channel error
+   */
+  public void autoOpenSecureChannel(PairingStore store, String pairingPassword) throws IOException, APDUException {
+    autoOpenSecureChannel(store, pairingPassword, null);
+  }
+
+  /**
+   * Same as autoOpenSecureChannel(PairingStore, String), with the pairing secret instead of the password.
+   *
+   * @param store the pairing store
+   * @param sharedSecret the pairing secret
+   * @throws IOException communication error or the store could not be written
+   * @throws APDUException pairing or secure channel error
+   */
+  public void autoOpenSecureChannel(PairingStore store, byte[] sharedSecret) throws IOException, APDUException {
+    autoOpenSecureChannel(store, null, sharedSecret);
+  }
+
+  private void autoOpenSecureChannel(PairingStore store, String pairingPassword, byte[] sharedSecret) throws IOException, APDUException {
+    if (info == null || !info.isInitializedCard()) {
+      throw new APDUException("No initialized Keycard selected");
+    }
+
+    byte[] instanceUID = info.getInstanceUID();
+    Pairing pairing = store.get(instanceUID);
+
+    CardTransaction tx = beginTransaction();
+
+    try {
+      if (pairing != null) {
+        setPairing(pairing);
+
+        try {
+          autoOpenSecureChannel();
+          return;
+        } catch (APDUException e) {
+          if (e.sw != APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED && e.sw != SW_INVALID_PAIRING_INDEX) {
+            throw e;
+          }
+        }
+
+        store.remove(instanceUID);
+        select(selectedInstanceIdx).checkOK();
+      }
+
+      // the PBKDF2 derivation is slow, so it is only done when pairing is actually needed
+      autoPair(sharedSecret != null ? sharedSecret : pairingPasswordToSecret(pairingPassword));
+      store.put(instanceUID, getPairing());
+      autoOpenSecureChannel();
+    } finally {
+      tx.close();
+    }
   }
 
   /**
@@ -188,7 +389,7 @@ public class KeycardCommandSet {
   public void autoPair(String pairingPassword) throws IOException, APDUException {
     byte[] secret = pairingPasswordToSecret(pairingPassword);
 
-    secureChannel.autoPair(apduChannel, secret);
+    autoPair(secret);
   }
 
   /**
@@ -217,7 +418,13 @@ public class KeycardCommandSet {
    * @throws APDUException pairing error
    */
   public void autoPair(byte[] sharedSecret) throws IOException, APDUException {
-    secureChannel.autoPair(apduChannel, sharedSecret);
+    CardTransaction tx = beginTransaction();
+
+    try {
+      secureChannel.autoPair(apduChannel, sharedSecret);
+    } finally {
+      tx.close();
+    }
   }
 
   /**
@@ -0,0 +1,531 @@
+package im.status.keycard.applet;
+
+import im.status.keycard.io.APDUException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A pool of Keycards, each driven by its own KeycardCommandSet and worker thread. Jobs are functions of the command set
+ * of a card, routed to the cards whose ApplicationInfo matches a CardSelector: a specific card by instance UID, any
+ * card holding a given key by key UID, or any card at all. A job is queued on the least loaded matching card and a
+ * worker which runs out of jobs steals queued jobs it can serve from the other cards, so throughput grows with the
+ * number of cards as long as the jobs can run on more than one of them.
+ *
+ * Cards are added already selected and, if needed, with an open secure channel and a verified PIN. A card is removed
+ * from the pool when a job fails with an IOException and its channel is no longer connected, its queued jobs going to
+ * other matching cards.
+ */
+public class KeycardPool {
+  /**
+   * A unit of work run on one card.
+   *
+   * @param <T> the result type
+   */
+  public interface Job<T> {
+    /**
+     * Runs the job.
+     *
+     * @param cmdSet the command set of the card
+     * @return the result
+     * @throws IOException communication error
+     * @throws APDUException unexpected response from the card
+     */
+    T run(KeycardCommandSet cmdSet) throws IOException, APDUException;
+  }
+
+  /**
+   * Selects the cards which can run a job.
+   */
+  public interface CardSelector {
+    /**
+     * Returns whether the card with the given application info can run the job.
+     *
+     * @param info the application info of the card
+     * @return true if the card matches
+     */
+    boolean matches(ApplicationInfo info);
+  }
+
+  private static class Task<T> {
+    final CardSelector selector;
+    final Job<T> job;
+    final CompletableFuture<T> future;
+
+    Task(CardSelector selector, Job<T> job) {
+      this.selector = selector;
+      this.job = job;
+      this.future = new CompletableFuture<>();
+    }
+  }
+
+  private final int queueCapacity;
+  private final List<Member> members;
+  private final long createdAt;
+  private long jobsRun;
+  private int workerCount;
+  private boolean shutdown;
+
+  /**
+   * Creates an empty pool.
+   *
+   * @param queueCapacity the maximum number of jobs queued on each card
+   */
+  public KeycardPool(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("The queue capacity must be at least 1");
+    }
+
+    this.queueCapacity = queueCapacity;
+    this.members = new ArrayList<>();
+    this.createdAt = System.nanoTime();
+  }
+
+  /**
+   * Selects the card with the given instance UID.
+   *
+   * @param instanceUID the instance UID
+   * @return the selector
+   */
+  public static CardSelector instanceUID(byte[] instanceUID) {
+    byte[] uid = instanceUID.clone();
+    return info -> Arrays.equals(uid, info.getInstanceUID());
+  }
+
+  /**
+   * Selects the cards holding the key with the given key UID.
+   *
+   * @param keyUID the key UID
+   * @return the selector
+   */
+  public static CardSelector keyUID(byte[] keyUID) {
+    byte[] uid = keyUID.clone();
+    return info -> Arrays.equals(uid, info.getKeyUID());
+  }
+
+  /**
+   * Selects any card.
+   *
+   * @return the selector
+   */
+  public static CardSelector anyCard() {
+    return info -> true;
+  }
+
+  /**
+   * Adds a card to the pool and starts its worker. The applet must have been selected with the given command set.
+   *
+   * @param cmdSet the command set of the card
+   * @return the member representing the card in the pool
+   * @throws IllegalStateException if the pool has been shut down
+   */
+  public synchronized Member add(KeycardCommandSet cmdSet) {
+    if (shutdown) {
+      throw new IllegalStateException("The pool has been shut down");
+    }
+
+    ApplicationInfo info = cmdSet.getApplicationInfo();
+
+    if (info == null) {
+      throw new IllegalArgumentException("The applet has not been selected");
+    }
+
+    Member member = new Member(cmdSet, info);
+    members.add(member);
+    member.worker = new Thread(member::work, "keycard-pool-" + (++workerCount));
+    member.worker.setDaemon(true);
+    member.worker.start();
+    notifyAll();
+
+    return member;
+  }
+
+  /**
+   * Removes a card from the pool. Its queued jobs are moved to other matching cards or fail if there are none. A job
+   * already running completes normally.
+   *
+   * @param member the card to remove
+   */
+  public void remove(Member member) {
+    List<Task<?>> failed;
+
+    synchronized (this) {
+      failed = removeMember(member);
+    }
+
+    failRemoved(failed);
+  }
+
+  /**
+   * Submits a job which can run on any card.
+   *
+   * @param job the job
+   * @param <T> the result type
+   * @return the future result of the job
+   * @throws RejectedExecutionException if the pool is empty, full or shut down
+   */
+  public <T> CompletableFuture<T> submit(Job<T> job) {
+    return submit(anyCard(), job);
+  }
+
+  /**
+   * Submits a job which can run on the cards matching the given selector.
+   *
+   * @param selector the card selector
+   * @param job the job
+   * @param <T> the result type
+   * @return the future result of the job
+   * @throws RejectedExecutionException if no card matches, the queues of all matching cards are full or the pool has
+   * been shut down
+   */
+  public synchronized <T> CompletableFuture<T> submit(CardSelector selector, Job<T> job) {
+    if (shutdown) {
+      throw new RejectedExecutionException("The pool has been shut down");
+    }
+
+    Task<T> task = new Task<>(selector, job);
+
+    if (!enqueue(task, null)) {
+      throw new RejectedExecutionException(matches(selector) ? "The job queues of all matching cards are full" : "No card in the pool matches the job");
+    }
+
+    return task.future;
+  }
+
+  /**
+   * Stops accepting jobs. Queued jobs are still run, after which the workers terminate.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  /**
+   * Returns the cards in the pool.
+   *
+   * @return the members of the pool
+   */
+  public synchronized List<Member> getMembers() {
+    return new ArrayList<>(members);
+  }
+
+  /**
+   * Returns the number of jobs queued on all cards, not counting the jobs being run.
+   *
+   * @return the total queue depth
+   */
+  public synchronized int getQueueDepth() {
+    int depth = 0;
+
+    for (Member member : members) {
+      depth += member.queue.size();
+    }
+
+    return depth;
+  }
+
+  /**
+   * Returns the number of jobs run by all cards, successful or not, including cards which have been removed.
+   *
+   * @return the number of jobs run
+   */
+  public synchronized long getCompletedJobs() {
+    return jobsRun;
+  }
+
+  /**
+   * Returns the average number of jobs run per second since the pool was created.
+   *
+   * @return the throughput in jobs per second
+   */
+  public double getThroughput() {
+    double seconds = (System.nanoTime() - createdAt) / 1e9;
+    return getCompletedJobs() / seconds;
+  }
+
+  private boolean matches(CardSelector selector) {
+    for (Member member : members) {
+      if (!member.removed && selector.matches(member.info)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Queues the task on the least loaded matching card with room in its queue. Must be called with the lock held.
+   */
+  private boolean enqueue(Task<?> task, Member exclude) {
+    Member target = null;
+    int targetLoad = Integer.MAX_VALUE;
+
+    for (Member member : members) {
+      if (member == exclude || member.removed || member.queue.size() >= queueCapacity || !task.selector.matches(member.info)) {
+        continue;
+      }
+
+      int load = member.queue.size() + (member.busy ? 1 : 0);
+
+      if (load < targetLoad) {
+        target = member;
+        targetLoad = load;
+      }
+    }
+
+    if (target == null) {
+      return false;
+    }
+
+    target.queue.addLast(task);
+    notifyAll();
+    return true;
+  }
+
+  /**
+   * Takes the most recently queued task of another card which the given card can run. Must be called with the lock
+   * held.
+   */
+  private Task<?> steal(Member thief) {
+    for (Member member : members) {
+      if (member == thief) {
+        continue;
+      }
+
+      Iterator<Task<?>> it = member.queue.descendingIterator();
+
+      while (it.hasNext()) {
+        Task<?> task = it.next();
+
+        if (task.selector.matches(thief.info)) {
+          it.remove();
+          return task;
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Removes the member and moves its queue to other cards. Must be called with the lock held.
+   *
+   * @return the tasks which could not be moved
+   */
+  private List<Task<?>> removeMember(Member member) {
+    if (member.removed) {
+      return Collections.emptyList();
+    }
+
+    member.removed = true;
+    members.remove(member);
+
+    List<Task<?>> failed = new ArrayList<>();
+    Task<?> task;
+
+    while ((task = member.queue.pollFirst()) != null) {
+      if (!enqueue(task, member)) {
+        failed.add(task);
+      }
+    }
+
+    notifyAll();
+    return failed;
+  }
+
+  private static void failRemoved(List<Task<?>> failed) {
+    for (Task<?> task : failed) {
+      task.future.completeExceptionally(new IOException("The card has been removed from the pool"));
+    }
+  }
+
+  /**
+   * A card in the pool, with its job queue and statistics. The statistics are updated when a job completes.
+   */
+  public class Member {
+    private final KeycardCommandSet cmdSet;
+    private final ApplicationInfo info;
+    private final ArrayDeque<Task<?>> queue;
+    private Thread worker;
+
+    private boolean busy;
+    private boolean removed;
+    private long completed;
+    private long failed;
+    private long stolen;
+    private long busyNanos;
+
+    private Member(KeycardCommandSet cmdSet, ApplicationInfo info) {
+      this.cmdSet = cmdSet;
+      this.info = info;
+      this.queue = new ArrayDeque<>(queueCapacity);
+    }
+
+    /**
+     * Returns the application info of the card, as it was when the card was added.
+     *
+     * @return the application info
+     */
+    public ApplicationInfo getApplicationInfo() {
+      return info;
+    }
+
+    /**
+     * Returns the number of jobs queued on this card, not counting the job being run.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+      synchronized (KeycardPool.this) {
+        return queue.size();
+      }
+    }
+
+    /**
+     * Returns the number of jobs which completed successfully on this card.
+     *
+     * @return the number of successful jobs
+     */
+    public long getCompletedJobs() {
+      synchronized (KeycardPool.this) {
+        return completed;
+      }
+    }
+
+    /**
+     * Returns the number of jobs which failed on this card.
+     *
+     * @return the number of failed jobs
+     */
+    public long getFailedJobs() {
+      synchronized (KeycardPool.this) {
+        return failed;
+      }
+    }
+
+    /**
+     * Returns the number of jobs this card took from the queue of other cards.
+     *
+     * @return the number of stolen jobs
+     */
+    public long getStolenJobs() {
+      synchronized (KeycardPool.this) {
+        return stolen;
+      }
+    }
+
+    /**
+     * Returns the total time spent running jobs on this card.
+     *
+     * @return the busy time in nanoseconds
+     */
+    public long getBusyNanos() {
+      synchronized (KeycardPool.this) {
+        return busyNanos;
+      }
+    }
+
+    private void work() {
+      try {
+        runTasks();
+      } finally {
+        List<Task<?>> orphans = Collections.emptyList();
+
+        synchronized (KeycardPool.this) {
+          // a worker stopping for another reason than the shutdown, like an interruption, must not keep receiving jobs
+          if (!removed && (!shutdown || !queue.isEmpty())) {
+            orphans = removeMember(this);
+          }
+        }
+
+        failRemoved(orphans);
+      }
+    }
+
+    private void runTasks() {
+      while (true) {
+        Task<?> task;
+
+        synchronized (KeycardPool.this) {
+          task = take();
+
+          if (task == null) {
+            return;
+          }
+
+          busy = true;
+        }
+
+        long start = System.nanoTime();
+        Throwable error = run(task);
+        boolean lost = (error instanceof IOException) && !cmdSet.getChannel().isConnected();
+        List<Task<?>> orphans = Collections.emptyList();
+
+        synchronized (KeycardPool.this) {
+          busy = false;
+          busyNanos += System.nanoTime() - start;
+          jobsRun++;
+
+          if (error == null) {
+            completed++;
+          } else {
+            failed++;
+          }
+
+          if (lost) {
+            orphans = removeMember(this);
+          }
+        }
+
+        failRemoved(orphans);
+      }
+    }
+
+    /**
+     * Waits for the next task of this card, stealing one if its queue is empty. Returns null when the worker must
+     * terminate. Must be called with the lock held.
+     */
+    private Task<?> take() {
+      while (!removed) {
+        Task<?> task = queue.pollFirst();
+
+        if (task == null) {
+          task = steal(this);
+
+          if (task != null) {
+            stolen++;
+          }
+        }
+
+        if (task != null) {
+          return task;
+        }
+
+        if (shutdown) {
+          return null;
+        }
+
+        try {
+          KeycardPool.this.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+
+      return null;
+    }
+
+    private <T> Throwable run(Task<T> task) {
+      try {
+        task.future.complete(task.job.run(cmdSet));
+        return null;
+      } catch (Throwable e) {
+        task.future.completeExceptionally(e);
+        return e;
+      }
+    }
+  }
+}
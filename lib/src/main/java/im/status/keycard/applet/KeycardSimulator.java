@@ -0,0 +1,1199 @@
+package im.status.keycard.applet;
+
+import im.status.keycard.io.APDUCommand;
+import im.status.keycard.io.APDUResponse;
+import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.CardTimeoutException;
+import im.status.keycard.io.Deadline;
+import im.status.keycard.io.LogicalCardChannel;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
+import org.bouncycastle.crypto.macs.HMac;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.crypto.signers.HMacDSAKCalculator;
+import org.bouncycastle.util.BigIntegers;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A software implementation of the Keycard and Cash applets, exposed as a CardChannel. All commands are processed
+ * in-process without any latency, so it can be used to measure the overhead of the host side or to run many sessions in
+ * parallel without hardware. The protocol follows the APPLICATION.md and SECURE_CHANNEL.md documents and uses the same
+ * TLV formats parsed by the client classes.
+ *
+ * The simulator has no certificate, so IDENTIFY CARD is not supported. The alternative PIN sent with INIT is accepted
+ * but never verified and the Cash applet returns BLS signatures as a single uncompressed G2 point, without the public
+ * key. Nothing is persistent and the key material is kept in plain Java objects: this is a test tool, not a wallet.
+ */
+public class KeycardSimulator implements CardChannel {
+  public static final short APP_VERSION = 0x0301;
+  public static final short CASH_APP_VERSION = 0x0301;
+
+  public static final byte PIN_LENGTH = 6;
+  public static final byte PUK_LENGTH = 12;
+  public static final byte DEFAULT_PIN_RETRIES = 3;
+  public static final byte DEFAULT_PUK_RETRIES = 5;
+
+  static final int UID_LENGTH = 16;
+  static final int KEY_PATH_MAX_DEPTH = 10;
+  static final int DATA_MAX_LENGTH = 1024;
+  static final int BLS_HASH_LENGTH = 192;
+
+  private static final int SW_WRONG_LENGTH = 0x6700;
+  private static final int SW_FILE_NOT_FOUND = 0x6A82;
+  private static final int SW_FILE_FULL = 0x6A84;
+  private static final int SW_WRONG_DATA = 0x6A80;
+  private static final int SW_INCORRECT_P1P2 = 0x6A86;
+  private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+
+  private static final byte SIGN_P2_TLV_SIGNATURE = 0x00;
+  private static final byte SIGN_P2_RAW_SIGNATURE = 0x01;
+
+  private static final int SELECTED_NONE = 0;
+  private static final int SELECTED_KEYCARD = 1;
+  private static final int SELECTED_CASH = 2;
+
+  private static final byte[] EIP1581_PREFIX = { (byte) 0x80, 0x00, 0x00, 0x2B, (byte) 0x80, 0x00, 0x00, 0x3C, (byte) 0x80, 0x00, 0x06, 0x2D };
+
+  private static final BigInteger HALF_N = RecoverableSignature.CURVE.getN().shiftRight(1);
+
+  private final SecureRandom random;
+  private final byte[] instanceAID;
+  private final PaddedBufferedBlockCipher cipher;
+  private final CBCBlockCipherMac mac;
+  private int pbkdf2IterationCount;
+  private int selected;
+
+  private boolean initialized;
+  private byte[] instanceUID;
+  private BIP32KeyPair scKeyPair;
+  private byte[] pin;
+  private byte[] puk;
+  private byte pinRetries;
+  private byte pukRetries;
+  private byte pinRemaining;
+  private byte pukRemaining;
+  private boolean pinVerified;
+  private byte[] pairingSecret;
+  private byte[][] pairingKeys;
+  private byte[] pairingChallenge;
+
+  private boolean scOpen;
+  private boolean scAuthenticated;
+  private KeyParameter scEncKey;
+  private KeyParameter scMacKey;
+  private byte[] scIV;
+  private final byte[] scMeta;
+
+  private BIP32KeyPair masterKey;
+  private BIP32KeyPair currentKey;
+  private byte[] keyPath;
+  private byte[] keyUID;
+  private byte[] pinlessPath;
+
+  private byte[] publicData;
+  private byte[] ndefData;
+  private byte[] cashData;
+  private BIP32KeyPair cashKeyPair;
+
+  /**
+   * Thrown by the command handlers to stop processing and respond with the given status word, like the ISOException of
+   * the real applet.
+   */
+  private static class SWException extends Exception {
+    final int sw;
+
+    SWException(int sw) {
+      super(null, null, false, false);
+      this.sw = sw;
+    }
+  }
+
+  /**
+   * Creates a simulated card with a new, uninitialized Keycard instance at the default AID and a Cash instance.
+   */
+  public KeycardSimulator() {
+    this(new SecureRandom());
+  }
+
+  /**
+   * Creates a simulated card using the given random number generator for all key material, challenges and IVs. A
+   * seeded generator makes the whole card deterministic.
+   *
+   * @param random the random number generator
+   */
+  public KeycardSimulator(SecureRandom random) {
+    this.random = random;
+    this.instanceAID = Identifiers.getKeycardInstanceAID();
+    this.cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new ISO7816d4Padding());
+    this.mac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+    this.scMeta = new byte[SecureChannelSession.SC_BLOCK_SIZE];
+    this.pbkdf2IterationCount = CardChannel.super.pairingPasswordPBKDF2IterationCount();
+    this.cashKeyPair = generateKeyPair();
+    this.cashData = new byte[0];
+    factoryReset();
+  }
+
+  @Override
+  public synchronized APDUResponse send(APDUCommand cmd) {
+    if (LogicalCardChannel.setChannelNumber(cmd.getCla() & 0xff, 0) == 0x00 && (cmd.getIns() & 0xff) == 0xA4) {
+      return select(cmd);
+    }
+
+    switch (selected) {
+      case SELECTED_KEYCARD:
+        return processKeycard(cmd);
+      case SELECTED_CASH:
+        return processCash(cmd);
+      default:
+        return respond(SW_INS_NOT_SUPPORTED);
+    }
+  }
+
+  /**
+   * Processes the command on the calling thread, since the simulator answers immediately.
+   *
+   * @param cmd the command
+   * @param deadline the deadline, only checked before processing the command
+   * @return the response
+   * @throws CardTimeoutException if the deadline has already expired
+   */
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws CardTimeoutException {
+    deadline.check();
+    return send(cmd);
+  }
+
+  @Override
+  public boolean isConnected() {
+    return true;
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return pbkdf2IterationCount;
+  }
+
+  /**
+   * Sets the iteration count reported to the KeycardCommandSet for deriving the pairing key from the pairing password.
+   * Lowering it makes pairing and initialization with a password much faster in tests and benchmarks, but the card
+   * must then always be paired with the same count.
+   *
+   * @param iterationCount the iteration count
+   */
+  public void setPairingPasswordPBKDF2IterationCount(int iterationCount) {
+    this.pbkdf2IterationCount = iterationCount;
+  }
+
+  /**
+   * Simulates removing the card from the field and tapping it again: no applet is selected, the Secure Channel is
+   * closed and the PIN must be verified again. Everything else is kept.
+   */
+  public synchronized void powerCycle() {
+    selected = SELECTED_NONE;
+    closeSecureChannel();
+    pinVerified = false;
+    pairingChallenge = null;
+  }
+
+  private APDUResponse select(APDUCommand cmd) {
+    byte[] aid = cmd.getData();
+    powerCycle();
+
+    if (Arrays.equals(aid, instanceAID)) {
+      selected = SELECTED_KEYCARD;
+      return respond(applicationInfo(), APDUResponse.SW_OK);
+    } else if (Arrays.equals(aid, Identifiers.CASH_INSTANCE_AID)) {
+      selected = SELECTED_CASH;
+      return respond(cashApplicationInfo(), APDUResponse.SW_OK);
+    } else {
+      return respond(SW_FILE_NOT_FOUND);
+    }
+  }
+
+  private byte[] applicationInfo() {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+    if (!initialized) {
+      writeTLV(os, ApplicationInfo.TLV_PUB_KEY, scKeyPair.getPublicKey());
+      return os.toByteArray();
+    }
+
+    writeTLV(os, ApplicationInfo.TLV_UID, instanceUID);
+    writeTLV(os, ApplicationInfo.TLV_PUB_KEY, scKeyPair.getPublicKey());
+    writeTLV(os, TinyBERTLV.TLV_INT, new byte[] { (byte) (APP_VERSION >> 8), (byte) APP_VERSION });
+    writeTLV(os, TinyBERTLV.TLV_INT, new byte[] { (byte) freePairingSlots() });
+    writeTLV(os, ApplicationInfo.TLV_KEY_UID, keyUID);
+    writeTLV(os, ApplicationInfo.TLV_CAPABILITIES, new byte[] { ApplicationInfo.CAPABILITIES_ALL });
+
+    return template(ApplicationInfo.TLV_APPLICATION_INFO_TEMPLATE, os);
+  }
+
+  private byte[] cashApplicationInfo() {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeTLV(os, ApplicationInfo.TLV_PUB_KEY, cashKeyPair.getPublicKey());
+    writeTLV(os, TinyBERTLV.TLV_INT, new byte[] { (byte) (CASH_APP_VERSION >> 8), (byte) CASH_APP_VERSION });
+    writeTLV(os, CashApplicationInfo.TLV_PUB_DATA, cashData);
+
+    return template(ApplicationInfo.TLV_APPLICATION_INFO_TEMPLATE, os);
+  }
+
+  private APDUResponse processKeycard(APDUCommand cmd) {
+    byte ins = (byte) cmd.getIns();
+    int p1 = cmd.getP1() & 0xff;
+    int p2 = cmd.getP2() & 0xff;
+
+    try {
+      switch (ins) {
+        case KeycardCommandSet.INS_INIT:
+          return respond(init(cmd.getData()), APDUResponse.SW_OK);
+        case KeycardCommandSet.INS_FACTORY_RESET:
+          return respond(factoryReset(p1, p2), APDUResponse.SW_OK);
+        default:
+          break;
+      }
+
+      if (!initialized) {
+        throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+      }
+
+      switch (ins) {
+        case SecureChannelSession.INS_PAIR:
+          return respond(pair(p1, cmd.getData()), APDUResponse.SW_OK);
+        case SecureChannelSession.INS_OPEN_SECURE_CHANNEL:
+          return respond(openSecureChannel(p1, cmd.getData()), APDUResponse.SW_OK);
+        default:
+          break;
+      }
+    } catch (SWException e) {
+      return respond(e.sw);
+    }
+
+    byte[] data;
+
+    if (scOpen) {
+      try {
+        data = unwrapCommand(cmd);
+      } catch (SWException e) {
+        closeSecureChannel();
+        return respond(e.sw);
+      }
+    } else {
+      data = cmd.getData();
+    }
+
+    byte[] resp;
+    int sw;
+
+    try {
+      resp = processProtected(ins, p1, p2, data);
+      sw = APDUResponse.SW_OK;
+    } catch (SWException e) {
+      resp = new byte[0];
+      sw = e.sw;
+    }
+
+    return scOpen ? wrapResponse(resp, sw) : respond(resp, sw);
+  }
+
+  private byte[] processProtected(byte ins, int p1, int p2, byte[] data) throws SWException {
+    if (ins == SecureChannelSession.INS_MUTUALLY_AUTHENTICATE) {
+      return mutuallyAuthenticate(data);
+    }
+
+    boolean noSecureChannel = (ins == KeycardCommandSet.INS_GET_DATA) || (ins == KeycardCommandSet.INS_SIGN && (p1 & 0x03) == KeycardCommandSet.SIGN_P1_PINLESS);
+
+    if (!noSecureChannel && !(scOpen && scAuthenticated)) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+
+    switch (ins) {
+      case SecureChannelSession.INS_UNPAIR:
+        return unpair(p1);
+      case KeycardCommandSet.INS_GET_STATUS:
+        return getStatus(p1);
+      case KeycardCommandSet.INS_VERIFY_PIN:
+        return verifyPIN(data);
+      case KeycardCommandSet.INS_CHANGE_PIN:
+        return changePIN(p1, data);
+      case KeycardCommandSet.INS_UNBLOCK_PIN:
+        return unblockPIN(data);
+      case KeycardCommandSet.INS_LOAD_KEY:
+        return loadKey(p1, data);
+      case KeycardCommandSet.INS_GENERATE_KEY:
+        return generateKey();
+      case KeycardCommandSet.INS_REMOVE_KEY:
+        return removeKey();
+      case KeycardCommandSet.INS_GENERATE_MNEMONIC:
+        return generateMnemonic(p1);
+      case KeycardCommandSet.INS_DERIVE_KEY:
+        return deriveKey(p1, data);
+      case KeycardCommandSet.INS_SIGN:
+        return sign(p1, p2, data);
+      case KeycardCommandSet.INS_SET_PINLESS_PATH:
+        return setPinlessPath(data);
+      case KeycardCommandSet.INS_EXPORT_KEY:
+        return exportKey(p1, p2, data);
+      case KeycardCommandSet.INS_GET_DATA:
+        return getData(p1);
+      case KeycardCommandSet.INS_STORE_DATA:
+        return storeData(p1, data);
+      case KeycardCommandSet.INS_SET_NDEF:
+        return storeData(KeycardCommandSet.STORE_DATA_P1_NDEF, data);
+      default:
+        throw new SWException(SW_INS_NOT_SUPPORTED);
+    }
+  }
+
+  private byte[] init(byte[] data) throws SWException {
+    if (initialized) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+
+    int pubLen = (data.length > 0) ? (data[0] & 0xff) : 0;
+    int ivOff = 1 + pubLen;
+    int ctOff = ivOff + SecureChannelSession.SC_BLOCK_SIZE;
+
+    if (pubLen == 0 || data.length <= ctOff) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    byte[] secret = ecdh(Arrays.copyOfRange(data, 1, ivOff));
+    byte[] plain = aes(false, new KeyParameter(secret), Arrays.copyOfRange(data, ivOff, ctOff), data, ctOff, data.length - ctOff);
+    int baseLen = PIN_LENGTH + PUK_LENGTH + SecureChannelSession.SC_SECRET_LENGTH;
+
+    if (plain.length != baseLen && plain.length < baseLen + 2) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    pin = Arrays.copyOfRange(plain, 0, PIN_LENGTH);
+    puk = Arrays.copyOfRange(plain, PIN_LENGTH, PIN_LENGTH + PUK_LENGTH);
+    pairingSecret = Arrays.copyOfRange(plain, PIN_LENGTH + PUK_LENGTH, baseLen);
+    pinRetries = (plain.length > baseLen && plain[baseLen] > 0) ? plain[baseLen] : DEFAULT_PIN_RETRIES;
+    pukRetries = (plain.length > baseLen && plain[baseLen + 1] > 0) ? plain[baseLen + 1] : DEFAULT_PUK_RETRIES;
+    pinRemaining = pinRetries;
+    pukRemaining = pukRetries;
+
+    instanceUID = new byte[UID_LENGTH];
+    random.nextBytes(instanceUID);
+    initialized = true;
+
+    return new byte[0];
+  }
+
+  private byte[] factoryReset(int p1, int p2) throws SWException {
+    if ((byte) p1 != KeycardCommandSet.FACTORY_RESET_P1_MAGIC || (byte) p2 != KeycardCommandSet.FACTORY_RESET_P2_MAGIC) {
+      throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    factoryReset();
+    return new byte[0];
+  }
+
+  private void factoryReset() {
+    powerCycle();
+    initialized = false;
+    instanceUID = null;
+    scKeyPair = generateKeyPair();
+    pin = null;
+    puk = null;
+    pairingSecret = null;
+    pairingKeys = new byte[SecureChannelSession.PAIRING_MAX_CLIENT_COUNT][];
+    publicData = new byte[0];
+    ndefData = new byte[0];
+    clearKeys();
+  }
+
+  private byte[] pair(int p1, byte[] data) throws SWException {
+    if (scOpen) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+
+    if (data.length != SecureChannelSession.SC_SECRET_LENGTH) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    switch ((byte) p1) {
+      case SecureChannelSession.PAIR_P1_FIRST_STEP:
+        pairingChallenge = randomBytes(SecureChannelSession.SC_SECRET_LENGTH);
+        return concat(sha256(pairingSecret, data), pairingChallenge);
+      case SecureChannelSession.PAIR_P1_LAST_STEP:
+        if (pairingChallenge == null) {
+          throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+
+        byte[] expected = sha256(pairingSecret, pairingChallenge);
+        pairingChallenge = null;
+
+        if (!constantTimeEquals(expected, data, 0)) {
+          throw new SWException(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED);
+        }
+
+        for (int i = 0; i < pairingKeys.length; i++) {
+          if (pairingKeys[i] == null) {
+            byte[] salt = randomBytes(SecureChannelSession.SC_SECRET_LENGTH);
+            pairingKeys[i] = sha256(pairingSecret, salt);
+            return concat(new byte[] { (byte) i }, salt);
+          }
+        }
+
+        throw new SWException(SW_FILE_FULL);
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+  }
+
+  private byte[] unpair(int p1) throws SWException {
+    requirePIN();
+
+    if (p1 >= pairingKeys.length) {
+      throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    pairingKeys[p1] = null;
+    return new byte[0];
+  }
+
+  private byte[] openSecureChannel(int p1, byte[] data) throws SWException {
+    closeSecureChannel();
+    pinVerified = false;
+
+    if (p1 >= pairingKeys.length || pairingKeys[p1] == null) {
+      throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    byte[] secret = ecdh(data);
+    byte[] salt = randomBytes(SecureChannelSession.SC_SECRET_LENGTH);
+    byte[] keyData = new byte[SecureChannelSession.SC_SECRET_LENGTH * 2];
+
+    SHA512Digest sha512 = new SHA512Digest();
+    sha512.update(secret, 0, secret.length);
+    sha512.update(pairingKeys[p1], 0, pairingKeys[p1].length);
+    sha512.update(salt, 0, salt.length);
+    sha512.doFinal(keyData, 0);
+
+    scEncKey = new KeyParameter(keyData, 0, SecureChannelSession.SC_SECRET_LENGTH);
+    scMacKey = new KeyParameter(keyData, SecureChannelSession.SC_SECRET_LENGTH, SecureChannelSession.SC_SECRET_LENGTH);
+    scIV = randomBytes(SecureChannelSession.SC_BLOCK_SIZE);
+    scOpen = true;
+
+    return concat(salt, scIV);
+  }
+
+  private byte[] mutuallyAuthenticate(byte[] data) throws SWException {
+    if (!scOpen || scAuthenticated) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+
+    if (data.length != SecureChannelSession.SC_SECRET_LENGTH) {
+      closeSecureChannel();
+      throw new SWException(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    scAuthenticated = true;
+    return randomBytes(SecureChannelSession.SC_SECRET_LENGTH);
+  }
+
+  private byte[] getStatus(int p1) throws SWException {
+    switch ((byte) p1) {
+      case KeycardCommandSet.GET_STATUS_P1_APPLICATION:
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        writeTLV(os, TinyBERTLV.TLV_INT, new byte[] { pinRemaining });
+        writeTLV(os, TinyBERTLV.TLV_INT, new byte[] { pukRemaining });
+        writeTLV(os, TinyBERTLV.TLV_BOOL, new byte[] { (byte) (masterKey != null ? 0xff : 0x00) });
+        return template(ApplicationStatus.TLV_APPLICATION_STATUS_TEMPLATE, os);
+      case KeycardCommandSet.GET_STATUS_P1_KEY_PATH:
+        return keyPath.clone();
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+  }
+
+  private byte[] verifyPIN(byte[] data) throws SWException {
+    if (pinRemaining == 0) {
+      throw new SWException(APDUResponse.SW_WRONG_PIN_MASK);
+    }
+
+    if (data.length == PIN_LENGTH && constantTimeEquals(pin, data, 0)) {
+      pinRemaining = pinRetries;
+      pinVerified = true;
+      return new byte[0];
+    }
+
+    pinVerified = false;
+    pinRemaining--;
+    throw new SWException(APDUResponse.SW_WRONG_PIN_MASK | pinRemaining);
+  }
+
+  private byte[] changePIN(int p1, byte[] data) throws SWException {
+    requirePIN();
+
+    switch ((byte) p1) {
+      case KeycardCommandSet.CHANGE_PIN_P1_USER_PIN:
+        pin = checkLength(data, PIN_LENGTH);
+        pinRemaining = pinRetries;
+        break;
+      case KeycardCommandSet.CHANGE_PIN_P1_PUK:
+        puk = checkLength(data, PUK_LENGTH);
+        pukRemaining = pukRetries;
+        break;
+      case KeycardCommandSet.CHANGE_PIN_P1_PAIRING_SECRET:
+        pairingSecret = checkLength(data, SecureChannelSession.SC_SECRET_LENGTH);
+        break;
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    return new byte[0];
+  }
+
+  private byte[] unblockPIN(byte[] data) throws SWException {
+    if (pinRemaining != 0) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+
+    checkLength(data, PUK_LENGTH + PIN_LENGTH);
+
+    if (pukRemaining == 0) {
+      throw new SWException(APDUResponse.SW_WRONG_PIN_MASK);
+    }
+
+    if (!constantTimeEquals(puk, data, 0)) {
+      pukRemaining--;
+      throw new SWException(APDUResponse.SW_WRONG_PIN_MASK | pukRemaining);
+    }
+
+    pin = Arrays.copyOfRange(data, PUK_LENGTH, PUK_LENGTH + PIN_LENGTH);
+    pinRemaining = pinRetries;
+    pukRemaining = pukRetries;
+    pinVerified = true;
+
+    return new byte[0];
+  }
+
+  private byte[] loadKey(int p1, byte[] data) throws SWException {
+    requirePIN();
+    BIP32KeyPair keyPair;
+
+    switch ((byte) p1) {
+      case KeycardCommandSet.LOAD_KEY_P1_EC:
+      case KeycardCommandSet.LOAD_KEY_P1_EXT_EC:
+        try {
+          keyPair = BIP32KeyPair.fromTLV(data);
+        } catch (RuntimeException e) {
+          throw new SWException(SW_WRONG_DATA);
+        }
+
+        if (keyPair.isPublicOnly() || (p1 == KeycardCommandSet.LOAD_KEY_P1_EXT_EC && !keyPair.isExtended())) {
+          throw new SWException(SW_WRONG_DATA);
+        }
+
+        BigInteger k = new BigInteger(1, keyPair.getPrivateKey());
+
+        if (k.signum() == 0 || k.compareTo(RecoverableSignature.CURVE.getN()) >= 0) {
+          throw new SWException(SW_WRONG_DATA);
+        }
+
+        byte[] chainCode = (p1 == KeycardCommandSet.LOAD_KEY_P1_EXT_EC) ? keyPair.getChainCode() : null;
+        keyPair = new BIP32KeyPair(BigIntegers.asUnsignedByteArray(32, k), chainCode, null);
+        break;
+      case KeycardCommandSet.LOAD_KEY_P1_SEED:
+        if (data.length < 16 || data.length > 64) {
+          throw new SWException(SW_WRONG_DATA);
+        }
+
+        keyPair = BIP32KeyPair.fromBinarySeed(data);
+        break;
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    return setMasterKey(keyPair);
+  }
+
+  private byte[] generateKey() throws SWException {
+    requirePIN();
+    return setMasterKey(BIP32KeyPair.fromBinarySeed(randomBytes(64)));
+  }
+
+  private byte[] removeKey() throws SWException {
+    requirePIN();
+    clearKeys();
+    return new byte[0];
+  }
+
+  private byte[] generateMnemonic(int cs) throws SWException {
+    if (cs < KeycardCommandSet.GENERATE_MNEMONIC_12_WORDS || cs > KeycardCommandSet.GENERATE_MNEMONIC_24_WORDS) {
+      throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    // cs * 32 bits of entropy followed by cs bits of its hash, split in groups of 11 bits
+    byte[] entropy = randomBytes(cs * 4);
+    byte[] hash = sha256(entropy, new byte[0]);
+    int wordCount = cs * 3;
+    byte[] indexes = new byte[wordCount * 2];
+
+    for (int i = 0; i < wordCount; i++) {
+      int idx = 0;
+
+      for (int j = 0; j < 11; j++) {
+        int bit = (i * 11) + j;
+        int b = (bit / 8) < entropy.length ? entropy[bit / 8] : hash[(bit / 8) - entropy.length];
+        idx = (idx << 1) | ((b >> (7 - (bit % 8))) & 1);
+      }
+
+      indexes[i * 2] = (byte) (idx >> 8);
+      indexes[(i * 2) + 1] = (byte) idx;
+    }
+
+    return indexes;
+  }
+
+  private byte[] deriveKey(int p1, byte[] data) throws SWException {
+    requirePIN();
+    requireKey();
+
+    byte[] path = resolvePath(p1, data, 0, data.length);
+    currentKey = derive(path);
+    keyPath = path;
+
+    return new byte[0];
+  }
+
+  private byte[] sign(int p1, int p2, byte[] data) throws SWException {
+    int hashLength = SecureChannelSession.SC_SECRET_LENGTH;
+
+    if (data.length < hashLength) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    BIP32KeyPair key;
+
+    switch ((byte) (p1 & 0x03)) {
+      case KeycardCommandSet.SIGN_P1_CURRENT_KEY:
+        requirePIN();
+        requireKey();
+        checkLength(data, hashLength);
+        key = currentKey;
+        break;
+      case KeycardCommandSet.SIGN_P1_DERIVE:
+      case KeycardCommandSet.SIGN_P1_DERIVE_AND_MAKE_CURRENT:
+        requirePIN();
+        requireKey();
+        byte[] path = resolvePath(p1, data, hashLength, data.length - hashLength);
+        key = derive(path);
+
+        if ((p1 & 0x03) == KeycardCommandSet.SIGN_P1_DERIVE_AND_MAKE_CURRENT) {
+          currentKey = key;
+          keyPath = path;
+        }
+        break;
+      default:
+        if (pinlessPath == null) {
+          throw new SWException(APDUResponse.SW_REFERENCED_DATA_NOT_FOUND);
+        }
+
+        requireKey();
+        checkLength(data, hashLength);
+        key = derive(pinlessPath);
+        break;
+    }
+
+    byte[] hash = Arrays.copyOf(data, hashLength);
+
+    switch ((byte) p2) {
+      case SIGN_P2_TLV_SIGNATURE:
+        return legacySignature(key, hash);
+      case SIGN_P2_RAW_SIGNATURE:
+        return rawSignature(key, hash);
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+  }
+
+  private byte[] setPinlessPath(byte[] data) throws SWException {
+    requirePIN();
+
+    if ((data.length % 4) != 0 || (data.length / 4) > KEY_PATH_MAX_DEPTH) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    pinlessPath = (data.length == 0) ? null : data.clone();
+    return new byte[0];
+  }
+
+  private byte[] exportKey(int p1, int p2, byte[] data) throws SWException {
+    requirePIN();
+    requireKey();
+
+    byte[] path;
+    BIP32KeyPair key;
+
+    switch ((byte) (p1 & 0x03)) {
+      case KeycardCommandSet.EXPORT_KEY_P1_CURRENT:
+        checkLength(data, 0);
+        path = keyPath;
+        key = currentKey;
+        break;
+      case KeycardCommandSet.EXPORT_KEY_P1_DERIVE:
+      case KeycardCommandSet.EXPORT_KEY_P1_DERIVE_AND_MAKE_CURRENT:
+        path = resolvePath(p1, data, 0, data.length);
+        key = derive(path);
+
+        if ((p1 & 0x03) == KeycardCommandSet.EXPORT_KEY_P1_DERIVE_AND_MAKE_CURRENT) {
+          currentKey = key;
+          keyPath = path;
+        }
+        break;
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeTLV(os, BIP32KeyPair.TLV_PUB_KEY, key.getPublicKey());
+
+    switch ((byte) p2) {
+      case KeycardCommandSet.EXPORT_KEY_P2_PRIVATE_AND_PUBLIC:
+        if (!isPrivateExportable(path)) {
+          throw new SWException(SW_INCORRECT_P1P2);
+        }
+
+        writeTLV(os, BIP32KeyPair.TLV_PRIV_KEY, key.getPrivateKey());
+        break;
+      case KeycardCommandSet.EXPORT_KEY_P2_PUBLIC_ONLY:
+        break;
+      case KeycardCommandSet.EXPORT_KEY_P2_EXTENDED_PUBLIC:
+        if (!key.isExtended()) {
+          throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+        }
+
+        writeTLV(os, BIP32KeyPair.TLV_CHAIN_CODE, key.getChainCode());
+        break;
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    return template(BIP32KeyPair.TLV_KEY_TEMPLATE, os);
+  }
+
+  private byte[] getData(int p1) throws SWException {
+    switch ((byte) p1) {
+      case KeycardCommandSet.STORE_DATA_P1_PUBLIC:
+        return publicData.clone();
+      case KeycardCommandSet.STORE_DATA_P1_NDEF:
+        return ndefData.clone();
+      case KeycardCommandSet.STORE_DATA_P1_CASH:
+        return cashData.clone();
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+  }
+
+  private byte[] storeData(int p1, byte[] data) throws SWException {
+    requirePIN();
+
+    if (data.length > DATA_MAX_LENGTH) {
+      throw new SWException(SW_WRONG_LENGTH);
+    }
+
+    switch ((byte) p1) {
+      case KeycardCommandSet.STORE_DATA_P1_PUBLIC:
+        publicData = data.clone();
+        break;
+      case KeycardCommandSet.STORE_DATA_P1_NDEF:
+        ndefData = data.clone();
+        break;
+      case KeycardCommandSet.STORE_DATA_P1_CASH:
+        cashData = data.clone();
+        break;
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    return new byte[0];
+  }
+
+  private APDUResponse processCash(APDUCommand cmd) {
+    try {
+      if ((byte) cmd.getIns() != KeycardCommandSet.INS_SIGN) {
+        throw new SWException(SW_INS_NOT_SUPPORTED);
+      }
+
+      if ((cmd.getP1() & 0xff) != 0) {
+        throw new SWException(SW_INCORRECT_P1P2);
+      }
+
+      byte[] data = cmd.getData();
+
+      switch ((byte) cmd.getP2()) {
+        case KeycardCommandSet.SIGN_P2_ECDSA:
+          return respond(legacySignature(cashKeyPair, checkLength(data, SecureChannelSession.SC_SECRET_LENGTH)), APDUResponse.SW_OK);
+        case KeycardCommandSet.SIGN_P2_BLS12_381:
+          ByteArrayOutputStream os = new ByteArrayOutputStream();
+          writeTLV(os, RecoverableSignature.TLV_RAW_SIGNATURE, BLS.sign(cashKeyPair.getPrivateKey(), checkLength(data, BLS_HASH_LENGTH)));
+          return respond(os.toByteArray(), APDUResponse.SW_OK);
+        default:
+          throw new SWException(SW_INCORRECT_P1P2);
+      }
+    } catch (SWException e) {
+      return respond(e.sw);
+    }
+  }
+
+  private byte[] unwrapCommand(APDUCommand cmd) throws SWException {
+    byte[] data = cmd.getData();
+    int blockSize = SecureChannelSession.SC_BLOCK_SIZE;
+
+    if (data.length < (blockSize * 2) || (data.length % blockSize) != 0) {
+      throw new SWException(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    Arrays.fill(scMeta, (byte) 0);
+    scMeta[0] = (byte) cmd.getCla();
+    scMeta[1] = (byte) cmd.getIns();
+    scMeta[2] = (byte) cmd.getP1();
+    scMeta[3] = (byte) cmd.getP2();
+    scMeta[4] = (byte) data.length;
+
+    byte[] cmdMac = calculateMAC(data, blockSize, data.length - blockSize);
+
+    if (!constantTimeEquals(cmdMac, data, 0)) {
+      throw new SWException(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    byte[] plain;
+
+    try {
+      plain = aes(false, scEncKey, scIV, data, blockSize, data.length - blockSize);
+    } catch (SWException e) {
+      throw new SWException(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+
+    scIV = cmdMac;
+    return plain;
+  }
+
+  private APDUResponse wrapResponse(byte[] data, int sw) {
+    byte[] plain = Arrays.copyOf(data, data.length + 2);
+    plain[data.length] = (byte) (sw >> 8);
+    plain[data.length + 1] = (byte) sw;
+
+    byte[] ciphertext;
+
+    try {
+      ciphertext = aes(true, scEncKey, scIV, plain, 0, plain.length);
+    } catch (SWException e) {
+      throw new IllegalStateException("Encryption cannot fail", e);
+    }
+
+    Arrays.fill(scMeta, (byte) 0);
+    scMeta[0] = (byte) (SecureChannelSession.SC_BLOCK_SIZE + ciphertext.length);
+    scIV = calculateMAC(ciphertext, 0, ciphertext.length);
+
+    return respond(concat(scIV, ciphertext), APDUResponse.SW_OK);
+  }
+
+  private void closeSecureChannel() {
+    scOpen = false;
+    scAuthenticated = false;
+    scEncKey = null;
+    scMacKey = null;
+    scIV = null;
+  }
+
+  private byte[] calculateMAC(byte[] data, int off, int len) {
+    byte[] out = new byte[SecureChannelSession.SC_BLOCK_SIZE];
+    mac.init(scMacKey);
+    mac.update(scMeta, 0, scMeta.length);
+    mac.update(data, off, len);
+    mac.doFinal(out, 0);
+    return out;
+  }
+
+  private byte[] aes(boolean encrypt, KeyParameter key, byte[] iv, byte[] data, int off, int len) throws SWException {
+    cipher.init(encrypt, new ParametersWithIV(key, iv));
+    byte[] out = new byte[cipher.getOutputSize(len)];
+    int outLen = cipher.processBytes(data, off, len, out, 0);
+
+    try {
+      outLen += cipher.doFinal(out, outLen);
+    } catch (InvalidCipherTextException e) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    return (outLen == out.length) ? out : Arrays.copyOf(out, outLen);
+  }
+
+  private byte[] ecdh(byte[] publicKey) throws SWException {
+    try {
+      BigInteger d = new BigInteger(1, scKeyPair.getPrivateKey());
+      return RecoverableSignature.CURVE.getCurve().decodePoint(publicKey).multiply(d).normalize().getAffineXCoord().getEncoded();
+    } catch (IllegalArgumentException e) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+  }
+
+  private byte[] setMasterKey(BIP32KeyPair keyPair) {
+    masterKey = keyPair;
+    currentKey = keyPair;
+    keyPath = new byte[0];
+    keyUID = sha256(keyPair.getPublicKey(), new byte[0]);
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeTLV(os, ApplicationInfo.TLV_KEY_UID, keyUID);
+    return os.toByteArray();
+  }
+
+  private void clearKeys() {
+    masterKey = null;
+    currentKey = null;
+    keyPath = new byte[0];
+    keyUID = new byte[0];
+    pinlessPath = null;
+  }
+
+  private byte[] resolvePath(int p1, byte[] data, int off, int len) throws SWException {
+    byte[] base;
+
+    switch ((byte) (p1 & 0xc0)) {
+      case KeycardCommandSet.DERIVE_P1_SOURCE_MASTER:
+        base = new byte[0];
+        break;
+      case KeycardCommandSet.DERIVE_P1_SOURCE_PARENT:
+        if (keyPath.length == 0) {
+          throw new SWException(SW_INCORRECT_P1P2);
+        }
+
+        base = Arrays.copyOf(keyPath, keyPath.length - 4);
+        break;
+      case KeycardCommandSet.DERIVE_P1_SOURCE_CURRENT:
+        base = keyPath;
+        break;
+      default:
+        throw new SWException(SW_INCORRECT_P1P2);
+    }
+
+    if ((len % 4) != 0 || ((base.length + len) / 4) > KEY_PATH_MAX_DEPTH) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    byte[] path = Arrays.copyOf(base, base.length + len);
+    System.arraycopy(data, off, path, base.length, len);
+    return path;
+  }
+
+  /**
+   * Derives the key at the given absolute path. Derivation starts from the current key when the path extends it, which
+   * is the common case of signing with keys below the current one.
+   */
+  private BIP32KeyPair derive(byte[] path) throws SWException {
+    BIP32KeyPair key = masterKey;
+    int off = 0;
+
+    if (path.length >= keyPath.length && Arrays.equals(keyPath, Arrays.copyOf(path, keyPath.length))) {
+      key = currentKey;
+      off = keyPath.length;
+    }
+
+    if (off < path.length && !key.isExtended()) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+
+    for (; off < path.length; off += 4) {
+      key = deriveChild(key, path, off);
+    }
+
+    return key;
+  }
+
+  private BIP32KeyPair deriveChild(BIP32KeyPair parent, byte[] path, int off) throws SWException {
+    HMac hmac = new HMac(new SHA512Digest());
+    hmac.init(new KeyParameter(parent.getChainCode()));
+
+    if ((path[off] & 0x80) == 0x80) {
+      hmac.update((byte) 0x00);
+      hmac.update(parent.getPrivateKey(), 0, parent.getPrivateKey().length);
+    } else {
+      byte[] pub = RecoverableSignature.CURVE.getCurve().decodePoint(parent.getPublicKey()).getEncoded(true);
+      hmac.update(pub, 0, pub.length);
+    }
+
+    hmac.update(path, off, 4);
+    byte[] i = new byte[64];
+    hmac.doFinal(i, 0);
+
+    BigInteger n = RecoverableSignature.CURVE.getN();
+    BigInteger il = new BigInteger(1, Arrays.copyOf(i, 32));
+    BigInteger k = il.add(new BigInteger(1, parent.getPrivateKey())).mod(n);
+
+    // BIP32 says to skip to the next index, but the probability is below 1 in 2^127
+    if (il.compareTo(n) >= 0 || k.signum() == 0) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    return new BIP32KeyPair(BigIntegers.asUnsignedByteArray(32, k), Arrays.copyOfRange(i, 32, 64), null);
+  }
+
+  private static boolean isPrivateExportable(byte[] path) {
+    return path.length > EIP1581_PREFIX.length && Arrays.equals(EIP1581_PREFIX, Arrays.copyOf(path, EIP1581_PREFIX.length));
+  }
+
+  private byte[] legacySignature(BIP32KeyPair key, byte[] hash) {
+    BigInteger[] rs = ecdsa(key, hash);
+
+    ByteArrayOutputStream sig = new ByteArrayOutputStream();
+    writeTLV(sig, TinyBERTLV.TLV_INT, rs[0].toByteArray());
+    writeTLV(sig, TinyBERTLV.TLV_INT, rs[1].toByteArray());
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeTLV(os, ApplicationInfo.TLV_PUB_KEY, key.getPublicKey());
+    writeTLV(os, RecoverableSignature.TLV_ECDSA_TEMPLATE, sig.toByteArray());
+
+    return template(RecoverableSignature.TLV_SIGNATURE_TEMPLATE, os);
+  }
+
+  private byte[] rawSignature(BIP32KeyPair key, byte[] hash) {
+    BigInteger[] rs = ecdsa(key, hash);
+    byte[] r = BigIntegers.asUnsignedByteArray(32, rs[0]);
+    byte[] s = BigIntegers.asUnsignedByteArray(32, rs[1]);
+    int recId = 0;
+
+    while (!Arrays.equals(key.getPublicKey(), RecoverableSignature.recoverFromSignature(recId, hash, r, s, false))) {
+      recId++;
+    }
+
+    byte[] signature = Arrays.copyOf(concat(r, s), 65);
+    signature[64] = (byte) recId;
+
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeTLV(os, RecoverableSignature.TLV_RAW_SIGNATURE, signature);
+    return os.toByteArray();
+  }
+
+  /**
+   * Deterministic (RFC 6979) ECDSA signature, with S normalized to the lower half of the order as Ethereum requires.
+   */
+  private static BigInteger[] ecdsa(BIP32KeyPair key, byte[] hash) {
+    ECDSASigner signer = new ECDSASigner(new HMacDSAKCalculator(new SHA256Digest()));
+    signer.init(true, new ECPrivateKeyParameters(new BigInteger(1, key.getPrivateKey()), RecoverableSignature.CURVE));
+    BigInteger[] rs = signer.generateSignature(hash);
+
+    if (rs[1].compareTo(HALF_N) > 0) {
+      rs[1] = RecoverableSignature.CURVE.getN().subtract(rs[1]);
+    }
+
+    return rs;
+  }
+
+  private BIP32KeyPair generateKeyPair() {
+    BigInteger k;
+
+    do {
+      k = new BigInteger(1, randomBytes(32));
+    } while (k.signum() == 0 || k.compareTo(RecoverableSignature.CURVE.getN()) >= 0);
+
+    return new BIP32KeyPair(BigIntegers.asUnsignedByteArray(32, k), null, null);
+  }
+
+  private int freePairingSlots() {
+    int free = 0;
+
+    for (byte[] key : pairingKeys) {
+      if (key == null) {
+        free++;
+      }
+    }
+
+    return free;
+  }
+
+  private void requirePIN() throws SWException {
+    if (!pinVerified) {
+      throw new SWException(APDUResponse.SW_SECURITY_CONDITION_NOT_SATISFIED);
+    }
+  }
+
+  private void requireKey() throws SWException {
+    if (masterKey == null) {
+      throw new SWException(APDUResponse.SW_CONDITIONS_OF_USE_NOT_SATISFIED);
+    }
+  }
+
+  private static byte[] checkLength(byte[] data, int length) throws SWException {
+    if (data.length != length) {
+      throw new SWException(SW_WRONG_DATA);
+    }
+
+    return data;
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] sha256(byte[] a, byte[] b) {
+    SHA256Digest sha256 = new SHA256Digest();
+    byte[] out = new byte[sha256.getDigestSize()];
+    sha256.update(a, 0, a.length);
+    sha256.update(b, 0, b.length);
+    sha256.doFinal(out, 0);
+    return out;
+  }
+
+  private static boolean constantTimeEquals(byte[] expected, byte[] buf, int off) {
+    if (buf.length - off < expected.length) {
+      return false;
+    }
+
+    int diff = 0;
+
+    for (int i = 0; i < expected.length; i++) {
+      diff |= expected[i] ^ buf[off + i];
+    }
+
+    return diff == 0;
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] res = Arrays.copyOf(a, a.length + b.length);
+    System.arraycopy(b, 0, res, a.length, b.length);
+    return res;
+  }
+
+  private static void writeTLV(ByteArrayOutputStream os, byte tag, byte[] value) {
+    os.write(tag);
+    TinyBERTLV.writeNum(os, value.length);
+    os.write(value, 0, value.length);
+  }
+
+  private static byte[] template(byte tag, ByteArrayOutputStream content) {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    writeTLV(os, tag, content.toByteArray());
+    return os.toByteArray();
+  }
+
+  private static APDUResponse respond(int sw) {
+    return respond(new byte[0], sw);
+  }
+
+  private static APDUResponse respond(byte[] data, int sw) {
+    byte[] apdu = Arrays.copyOf(data, data.length + 2);
+    apdu[data.length] = (byte) (sw >> 8);
+    apdu[data.length + 1] = (byte) sw;
+    return new APDUResponse(apdu);
+  }
+}
@@ -0,0 +1,251 @@
+package im.status.keycard.applet;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the pairings of several cards, indexed by the instance UID of the Keycard applet, so that a card paired once
+ * can open the secure channel in later sessions without pairing again. Use it with
+ * KeycardCommandSet.autoOpenSecureChannel(PairingStore, String), which pairs only when the store has no valid pairing
+ * for the selected card.
+ *
+ * The store is kept in memory and, if created with a file, written to it after each change. The file is written to a
+ * temporary file first, synced, then renamed over the previous one. Where the rename cannot replace a file, the
+ * previous file is deleted first, so a crash in between leaves only the temporary file, which is then loaded and put
+ * back in place when the store is opened. Either way, a crash while writing leaves either the old or the new content.
+ * The format is a 4-byte magic, a version byte, the number of entries on 2 bytes, then for each entry
+ * the length and bytes of the instance UID, the pairing index, the length and bytes of the pairing key, and finally
+ * the CRC32 of everything before it.
+ *
+ * The methods are thread-safe. A file must only be used by one store at a time.
+ */
+public class PairingStore {
+  private static final int MAGIC = 0x4b435053;
+  private static final int VERSION = 1;
+
+  private final File file;
+  private final Map<String, Pairing> pairings;
+
+  /**
+   * Creates a store kept in memory only.
+   */
+  public PairingStore() {
+    this.file = null;
+    this.pairings = new HashMap<>();
+  }
+
+  /**
+   * Creates a store persisted in the given file, loading its content if the file exists.
+   *
+   * @param file the file
+   * @throws IOException the file could not be read or is corrupted
+   */
+  public PairingStore(File file) throws IOException {
+    this.file = file;
+    this.pairings = new HashMap<>();
+
+    File tmp = tmpFile();
+
+    if (file.exists()) {
+      load(file);
+    } else if (tmp.exists()) {
+      // the previous file was deleted but the new one not yet renamed, the temporary file is complete since it was
+      // synced before the deletion. An incomplete one can only come from a crash during the very first write.
+      try {
+        load(tmp);
+      } catch (IOException e) {
+        pairings.clear();
+        tmp.delete();
+        return;
+      }
+
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Cannot restore the pairing store " + file);
+      }
+    }
+  }
+
+  /**
+   * Returns the pairing of the card with the given instance UID.
+   *
+   * @param instanceUID the instance UID
+   * @return the pairing, or null if the card is not in the store
+   */
+  public synchronized Pairing get(byte[] instanceUID) {
+    return pairings.get(key(instanceUID));
+  }
+
+  /**
+   * Stores the pairing of the card with the given instance UID, replacing the previous one if any.
+   *
+   * @param instanceUID the instance UID
+   * @param pairing the pairing
+   * @throws IOException the store could not be written, in which case it is left unchanged
+   */
+  public synchronized void put(byte[] instanceUID, Pairing pairing) throws IOException {
+    String key = key(instanceUID);
+    Pairing previous = pairings.put(key, pairing);
+
+    try {
+      save();
+    } catch (IOException e) {
+      restore(key, previous);
+      throw e;
+    }
+  }
+
+  /**
+   * Removes the pairing of the card with the given instance UID.
+   *
+   * @param instanceUID the instance UID
+   * @return the removed pairing, or null if the card was not in the store
+   * @throws IOException the store could not be written, in which case it is left unchanged
+   */
+  public synchronized Pairing remove(byte[] instanceUID) throws IOException {
+    String key = key(instanceUID);
+    Pairing previous = pairings.remove(key);
+
+    if (previous == null) {
+      return null;
+    }
+
+    try {
+      save();
+    } catch (IOException e) {
+      restore(key, previous);
+      throw e;
+    }
+
+    return previous;
+  }
+
+  /**
+   * Returns the instance UIDs of the cards in the store.
+   *
+   * @return the instance UIDs
+   */
+  public synchronized List<byte[]> getInstanceUIDs() {
+    List<byte[]> uids = new ArrayList<>(pairings.size());
+
+    for (String key : pairings.keySet()) {
+      uids.add(Hex.decode(key));
+    }
+
+    return uids;
+  }
+
+  /**
+   * Returns the number of cards in the store.
+   *
+   * @return the number of pairings
+   */
+  public synchronized int size() {
+    return pairings.size();
+  }
+
+  private static String key(byte[] instanceUID) {
+    return Hex.toHexString(instanceUID);
+  }
+
+  private void restore(String key, Pairing previous) {
+    if (previous != null) {
+      pairings.put(key, previous);
+    } else {
+      pairings.remove(key);
+    }
+  }
+
+  private File tmpFile() {
+    return new File(file.getPath() + ".tmp");
+  }
+
+  private void load(File from) throws IOException {
+    byte[] content;
+
+    try (FileInputStream in = new FileInputStream(from)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int read;
+
+      while ((read = in.read(buf)) != -1) {
+        out.write(buf, 0, read);
+      }
+
+      content = out.toByteArray();
+    }
+
+    if (content.length < 4) {
+      throw new IOException("Corrupted pairing store");
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(content, 0, content.length - 4);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+    in.skipBytes(content.length - 4);
+
+    if ((int) crc.getValue() != in.readInt()) {
+      throw new IOException("Corrupted pairing store");
+    }
+
+    in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 4));
+
+    if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+      throw new IOException("Unsupported pairing store format");
+    }
+
+    int count = in.readUnsignedShort();
+
+    for (int i = 0; i < count; i++) {
+      byte[] uid = new byte[in.readUnsignedByte()];
+      in.readFully(uid);
+      byte index = in.readByte();
+      byte[] pairingKey = new byte[in.readUnsignedByte()];
+      in.readFully(pairingKey);
+      pairings.put(key(uid), new Pairing(pairingKey, index));
+    }
+  }
+
+  private void save() throws IOException {
+    if (file == null) {
+      return;
+    }
+
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeInt(MAGIC);
+    out.writeByte(VERSION);
+    out.writeShort(pairings.size());
+
+    for (Map.Entry<String, Pairing> entry : pairings.entrySet()) {
+      byte[] uid = Hex.decode(entry.getKey());
+      byte[] pairingKey = entry.getValue().getPairingKey();
+      out.writeByte(uid.length);
+      out.write(uid);
+      out.writeByte(entry.getValue().getPairingIndex());
+      out.writeByte(pairingKey.length);
+      out.write(pairingKey);
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(buf.toByteArray());
+    out.writeInt((int) crc.getValue());
+
+    File tmp = tmpFile();
+
+    try (FileOutputStream fos = new FileOutputStream(tmp)) {
+      buf.writeTo(fos);
+      fos.getFD().sync();
+    }
+
+    // renameTo does not replace an existing file on every platform
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      throw new IOException("Cannot write the pairing store to " + file);
+    }
+  }
+}
@@ -41,7 +41,20 @@ public class RecoverableSignature {
    * @param tlvData the signature as returned from the card
    */
   public RecoverableSignature(byte[] hash, byte[] tlvData) {
-    TinyBERTLV tlv = new TinyBERTLV(tlvData);
+    this(hash, tlvData, 0, tlvData.length);
+  }
+
+  /**
+   * Parses a signature from the card found in the given slice of the buffer and calculates the recovery ID. The buffer
+   * is read in place, so the data field of an APDUResponse can be passed without copying it.
+   *
+   * @param hash the message being signed
+   * @param buf the buffer holding the signature as returned from the card
+   * @param off the offset of the signature
+   * @param len the length of the signature
+   */
+  public RecoverableSignature(byte[] hash, byte[] buf, int off, int len) {
+    TinyBERTLV tlv = new TinyBERTLV(buf, off, len);
     int tag = tlv.readTag();
     tlv.unreadLastTag();
 
@@ -0,0 +1,383 @@
+package im.status.keycard.applet;
+
+import im.status.keycard.io.APDUCommand;
+import im.status.keycard.io.APDUException;
+import im.status.keycard.io.APDUResponse;
+import im.status.keycard.io.APDUWrapper;
+import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.CardTransaction;
+import im.status.keycard.io.Deadline;
+import im.status.keycard.io.RetryPolicy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Keycard session surviving communication errors. When a command fails with an IOException, the session reconnects
+ * through its Connector, selects the applet, opens the secure channel with the stored pairing and verifies the PIN
+ * again, waiting between attempts according to its RetryPolicy. The failed operation is then run again if all the
+ * commands it had sent are idempotent (see KeycardCommandSet.isIdempotent), otherwise the error is thrown to the
+ * caller, since the commands might have been executed, and the session is only restored for the next operation.
+ *
+ * Status words other than 0x9000 are never retried: the card has answered, so they are not communication errors.
+ */
+public class ResilientKeycardSession {
+  /**
+   * Provides a connected channel to the card, for example by waiting for the tag to be tapped again.
+   */
+  public interface Connector {
+    /**
+     * Returns a connected channel to the card.
+     *
+     * @return the channel
+     * @throws IOException if no channel could be connected
+     */
+    CardChannel connect() throws IOException;
+  }
+
+  /**
+   * An operation run on the command set of the session.
+   *
+   * @param <T> the result type
+   */
+  public interface Operation<T> {
+    /**
+     * Runs the operation.
+     *
+     * @param cmdSet the command set, with an open secure channel if the session has a pairing
+     * @return the result
+     * @throws IOException communication error
+     * @throws APDUException unexpected response from the card
+     */
+    T run(KeycardCommandSet cmdSet) throws IOException, APDUException;
+  }
+
+  private final Connector connector;
+  private final Pairing pairing;
+  private final RetryPolicy policy;
+  private final AtomicLong retries;
+  private final AtomicLong reconnects;
+
+  private String pin;
+  private KeycardCommandSet cmdSet;
+  private IdempotencyTracker tracker;
+  private boolean connectedOnce;
+
+  /**
+   * Creates a session. No connection is made until the first command is sent.
+   *
+   * @param connector the connector
+   * @param pairing the pairing used to open the secure channel, or null to work without secure channel
+   * @param policy the retry policy
+   */
+  public ResilientKeycardSession(Connector connector, Pairing pairing, RetryPolicy policy) {
+    this.connector = connector;
+    this.pairing = pairing;
+    this.policy = policy;
+    this.retries = new AtomicLong();
+    this.reconnects = new AtomicLong();
+  }
+
+  /**
+   * Sets the PIN verified each time the session is established. The PIN is not verified immediately.
+   *
+   * @param pin the PIN, or null to skip verification
+   */
+  public synchronized void setPIN(String pin) {
+    this.pin = pin;
+  }
+
+  /**
+   * Returns the number of times a command or the establishment of the session has been retried.
+   *
+   * @return the retry count
+   */
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  /**
+   * Returns the number of times the session has been established again after a communication error.
+   *
+   * @return the reconnect count
+   */
+  public long getReconnectCount() {
+    return reconnects.get();
+  }
+
+  /**
+   * Runs the operation, retrying it after communication errors if every command it sent before the error is
+   * idempotent, as classified by KeycardCommandSet.isIdempotent. An error while the session is being established is
+   * always retried, since none of the commands of the operation had been sent yet.
+   *
+   * @param op the operation
+   * @param <T> the result type
+   * @return the result of the operation
+   * @throws IOException communication error which could not be recovered
+   * @throws APDUException unexpected response from the card, including while establishing the session
+   */
+  public synchronized <T> T execute(Operation<T> op) throws IOException, APDUException {
+    int attempt = 1;
+
+    while (true) {
+      boolean idempotent = true;
+
+      try {
+        if (cmdSet == null) {
+          cmdSet = establish();
+        }
+
+        tracker.reset();
+
+        try {
+          return op.run(cmdSet);
+        } finally {
+          idempotent = tracker.isIdempotent();
+        }
+      } catch (IOException e) {
+        cmdSet = null;
+
+        if (!idempotent || attempt >= policy.getMaxAttempts()) {
+          throw e;
+        }
+
+        retries.incrementAndGet();
+        policy.backoff(attempt++);
+      }
+    }
+  }
+
+  /**
+   * Sends a GET STATUS APDU.
+   *
+   * @param info the P1 of the APDU
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public APDUResponse getStatus(byte info) throws IOException, APDUException {
+    return execute(cmdSet -> cmdSet.getStatus(info));
+  }
+
+  /**
+   * Sends a SIGN APDU with the current key.
+   *
+   * @param hash the hash to sign
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public APDUResponse sign(byte[] hash) throws IOException, APDUException {
+    return execute(cmdSet -> cmdSet.sign(hash));
+  }
+
+  /**
+   * Sends a SIGN APDU with the key at the given path. Not retried if the path is relative and the key becomes current.
+   *
+   * @param hash the hash to sign
+   * @param path the key path
+   * @param makeCurrent whether the key becomes the current key
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public APDUResponse signWithPath(byte[] hash, String path, boolean makeCurrent) throws IOException, APDUException {
+    return execute(cmdSet -> cmdSet.signWithPath(hash, path, makeCurrent));
+  }
+
+  /**
+   * Sends an EXPORT KEY APDU with the key at the given path. Not retried if the path is relative and the key becomes
+   * current.
+   *
+   * @param keyPath the key path
+   * @param makeCurrent whether the key becomes the current key
+   * @param publicOnly whether only the public key is exported
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public APDUResponse exportKey(String keyPath, boolean makeCurrent, boolean publicOnly) throws IOException, APDUException {
+    return execute(cmdSet -> cmdSet.exportKey(keyPath, makeCurrent, publicOnly));
+  }
+
+  /**
+   * Sends a GET DATA APDU.
+   *
+   * @param dataType the type of data
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public APDUResponse getData(byte dataType) throws IOException, APDUException {
+    return execute(cmdSet -> cmdSet.getData(dataType));
+  }
+
+  /**
+   * Sends a CHANGE PIN APDU and, if successful, uses the new PIN to establish the session from then on. The command is
+   * not retried. If it fails with a communication error, whether the PIN was changed is unknown, so the session forgets
+   * the PIN rather than risking a wrong attempt and the caller must set the right one.
+   *
+   * @param newPin the new PIN
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public synchronized APDUResponse changePIN(String newPin) throws IOException, APDUException {
+    boolean[] sent = new boolean[1];
+    APDUResponse resp;
+
+    try {
+      resp = execute(cmdSet -> {
+        sent[0] = true;
+        return cmdSet.changePIN(newPin);
+      });
+    } catch (IOException e) {
+      if (sent[0]) {
+        pin = null;
+      }
+
+      throw e;
+    }
+
+    if (resp.isOK()) {
+      pin = newPin;
+    }
+
+    return resp;
+  }
+
+  /**
+   * Sends a LOAD KEY APDU with the given seed. The command is not retried. After a communication error, the key UID
+   * in the application info of the reestablished session tells whether the key has been loaded.
+   *
+   * @param seed the binary seed
+   * @return the raw card response
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public APDUResponse loadKey(byte[] seed) throws IOException, APDUException {
+    return execute(cmdSet -> cmdSet.loadKey(seed));
+  }
+
+  /**
+   * Returns the application info of the current session, establishing it if needed.
+   *
+   * @return the application info
+   * @throws IOException communication error
+   * @throws APDUException error establishing the session
+   */
+  public ApplicationInfo getApplicationInfo() throws IOException, APDUException {
+    return execute(KeycardCommandSet::getApplicationInfo);
+  }
+
+  private KeycardCommandSet establish() throws IOException, APDUException {
+    if (connectedOnce) {
+      reconnects.incrementAndGet();
+    }
+
+    CardChannel channel = connector.connect();
+    IdempotencyTracker tr = new IdempotencyTracker(channel);
+    KeycardCommandSet cs = new KeycardCommandSet(tr);
+    connectedOnce = true;
+
+    CardTransaction tx = cs.beginTransaction();
+
+    try {
+      cs.select().checkOK();
+
+      if (pairing != null) {
+        cs.setPairing(pairing);
+        cs.autoOpenSecureChannel();
+
+        if (pin != null) {
+          cs.verifyPIN(pin).checkAuthOK();
+        }
+      }
+    } finally {
+      tx.close();
+    }
+
+    tracker = tr;
+    return cs;
+  }
+
+  /**
+   * Forwards the commands to the channel of the card, remembering whether all the commands sent since the last reset
+   * are idempotent. A command counts as soon as it is sent, since its outcome is unknown if the exchange fails.
+   */
+  private static class IdempotencyTracker implements CardChannel {
+    private final CardChannel channel;
+    private volatile boolean idempotent;
+
+    IdempotencyTracker(CardChannel channel) {
+      this.channel = channel;
+      this.idempotent = true;
+    }
+
+    void reset() {
+      idempotent = true;
+    }
+
+    boolean isIdempotent() {
+      return idempotent;
+    }
+
+    private void track(APDUCommand cmd) {
+      if (!KeycardCommandSet.isIdempotent(cmd)) {
+        idempotent = false;
+      }
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      track(cmd);
+      return channel.send(cmd);
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+      track(cmd);
+      return channel.send(cmd, deadline);
+    }
+
+    @Override
+    public List<APDUResponse> sendBatch(List<APDUCommand> cmds, APDUWrapper wrapper) throws IOException {
+      for (APDUCommand cmd : cmds) {
+        track(cmd);
+      }
+
+      return channel.sendBatch(cmds, wrapper);
+    }
+
+    @Override
+    public void beginTransaction() throws IOException {
+      channel.beginTransaction();
+    }
+
+    @Override
+    public void endTransaction() throws IOException {
+      channel.endTransaction();
+    }
+
+    @Override
+    public boolean isConnected() {
+      return channel.isConnected();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+      return channel.getMaxTransceiveLength();
+    }
+
+    @Override
+    public int pairingPasswordPBKDF2IterationCount() {
+      return channel.pairingPasswordPBKDF2IterationCount();
+    }
+
+    @Override
+    public int getChannelNumber() {
+      return channel.getChannelNumber();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package im.status.keycard.applet;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+
+/**
+ * The AES operations of a secure channel session: CBC encryption with ISO 7816-4 padding, CBC decryption and the
+ * CBC-MAC chaining the IVs. Encryption and MAC, or MAC and decryption, are computed together block by block, so the
+ * data is only traversed once. The key schedules are expanded once when the session keys are set and all operations
+ * work on buffers provided by the caller, so protecting a command or unwrapping a response does not allocate. The
+ * padding and chaining are done here instead of using a Cipher or Mac object, which need to be initialized again with
+ * each IV.
+ *
+ * Instances are not thread-safe.
+ */
+public class SecureChannelCrypto {
+  /**
+   * Returned by macAndDecrypt when the MAC does not match.
+   */
+  public static final int INVALID_MAC = -1;
+
+  /**
+   * Returned by macAndDecrypt when the MAC matches but the ciphertext length or the padding is invalid.
+   */
+  public static final int INVALID_PADDING = -2;
+
+  private static final int BLOCK_SIZE = SecureChannelSession.SC_BLOCK_SIZE;
+
+  private final AESEngine encryptEngine;
+  private final AESEngine decryptEngine;
+  private final AESEngine macEngine;
+  private final byte[] block;
+  private final byte[] chain;
+  private final byte[] prev;
+  private final byte[] next;
+
+  /**
+   * Creates the engines for the given session keys.
+   *
+   * @param encKey the buffer holding the encryption key
+   * @param encOff the offset of the 256-bit encryption key
+   * @param macKey the buffer holding the MAC key
+   * @param macOff the offset of the 256-bit MAC key
+   */
+  public SecureChannelCrypto(byte[] encKey, int encOff, byte[] macKey, int macOff) {
+    KeyParameter enc = new KeyParameter(encKey, encOff, SecureChannelSession.SC_SECRET_LENGTH);
+
+    encryptEngine = new AESEngine();
+    encryptEngine.init(true, enc);
+    decryptEngine = new AESEngine();
+    decryptEngine.init(false, enc);
+    macEngine = new AESEngine();
+    macEngine.init(true, new KeyParameter(macKey, macOff, SecureChannelSession.SC_SECRET_LENGTH));
+
+    block = new byte[BLOCK_SIZE];
+    chain = new byte[BLOCK_SIZE];
+    prev = new byte[BLOCK_SIZE];
+    next = new byte[BLOCK_SIZE];
+  }
+
+  /**
+   * Returns the length of the ciphertext of a plaintext of the given length. The padding always adds at least one byte.
+   *
+   * @param len the plaintext length
+   * @return the ciphertext length
+   */
+  public static int paddedLength(int len) {
+    return ((len / BLOCK_SIZE) + 1) * BLOCK_SIZE;
+  }
+
+  /**
+   * Pads the plaintext, encrypts it in CBC mode and calculates the CBC-MAC of the metadata block followed by the
+   * ciphertext, in a single pass: each block is added to the MAC as soon as it is encrypted. The output must not
+   * overlap the input, unless both start at the same offset of the same buffer. The MAC can be written over the IV.
+   *
+   * @param iv the IV
+   * @param meta the metadata block
+   * @param in the buffer holding the plaintext
+   * @param inOff the offset of the plaintext
+   * @param len the length of the plaintext
+   * @param out the output buffer, with room for paddedLength(len) bytes
+   * @param outOff the offset in the output buffer
+   * @param mac the buffer receiving the MAC
+   * @param macOff the offset of the MAC
+   * @return the length of the ciphertext
+   */
+  public int encryptAndMac(byte[] iv, byte[] meta, byte[] in, int inOff, int len, byte[] out, int outOff, byte[] mac, int macOff) {
+    int padded = paddedLength(len);
+    macEngine.processBlock(meta, 0, chain, 0);
+
+    for (int i = 0; i < padded; i += BLOCK_SIZE) {
+      for (int j = 0; j < BLOCK_SIZE; j++) {
+        int k = i + j;
+        byte p = k < len ? in[inOff + k] : (k == len ? (byte) 0x80 : 0);
+        block[j] = (byte) (p ^ (i == 0 ? iv[j] : out[outOff + k - BLOCK_SIZE]));
+      }
+
+      encryptEngine.processBlock(block, 0, out, outOff + i);
+
+      for (int j = 0; j < BLOCK_SIZE; j++) {
+        block[j] = (byte) (chain[j] ^ out[outOff + i + j]);
+      }
+
+      macEngine.processBlock(block, 0, chain, 0);
+    }
+
+    System.arraycopy(chain, 0, mac, macOff, BLOCK_SIZE);
+    return padded;
+  }
+
+  /**
+   * Calculates the CBC-MAC of the metadata block followed by the ciphertext and decrypts the ciphertext in CBC mode, in
+   * a single pass. The calculated MAC is compared in constant time with the expected one, and if they differ the
+   * decrypted data is erased from the output before returning, so no plaintext is ever released for an invalid MAC.
+   * Only then is the padding checked and removed. The plaintext can be written over the ciphertext and the calculated
+   * MAC over the IV.
+   *
+   * @param iv the IV
+   * @param meta the metadata block
+   * @param in the buffer holding the ciphertext
+   * @param inOff the offset of the ciphertext
+   * @param len the length of the ciphertext
+   * @param expectedMac the buffer holding the expected MAC
+   * @param expectedMacOff the offset of the expected MAC
+   * @param out the output buffer, with room for len bytes
+   * @param outOff the offset in the output buffer
+   * @param mac the buffer receiving the calculated MAC
+   * @param macOff the offset of the calculated MAC
+   * @return the length of the plaintext, INVALID_MAC or INVALID_PADDING
+   */
+  public int macAndDecrypt(byte[] iv, byte[] meta, byte[] in, int inOff, int len, byte[] expectedMac, int expectedMacOff, byte[] out, int outOff, byte[] mac, int macOff) {
+    System.arraycopy(iv, 0, prev, 0, BLOCK_SIZE);
+    macEngine.processBlock(meta, 0, chain, 0);
+
+    for (int i = 0; i < len; i += BLOCK_SIZE) {
+      for (int j = 0; j < BLOCK_SIZE; j++) {
+        int k = i + j;
+        next[j] = k < len ? in[inOff + k] : 0;
+        block[j] = (byte) (chain[j] ^ next[j]);
+      }
+
+      macEngine.processBlock(block, 0, chain, 0);
+      decryptEngine.processBlock(next, 0, block, 0);
+
+      for (int j = 0; j < BLOCK_SIZE && i + j < len; j++) {
+        out[outOff + i + j] = (byte) (block[j] ^ prev[j]);
+      }
+
+      System.arraycopy(next, 0, prev, 0, BLOCK_SIZE);
+    }
+
+    int diff = 0;
+
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      diff |= chain[i] ^ expectedMac[expectedMacOff + i];
+    }
+
+    System.arraycopy(chain, 0, mac, macOff, BLOCK_SIZE);
+
+    if (diff != 0) {
+      Arrays.fill(out, outOff, outOff + len, (byte) 0);
+      return INVALID_MAC;
+    }
+
+    if (len == 0 || (len % BLOCK_SIZE) != 0) {
+      return INVALID_PADDING;
+    }
+
+    int end = outOff + len - 1;
+
+    while (end >= outOff + len - BLOCK_SIZE && out[end] == 0) {
+      end--;
+    }
+
+    if (end < outOff + len - BLOCK_SIZE || out[end] != (byte) 0x80) {
+      return INVALID_PADDING;
+    }
+
+    return end - outOff;
+  }
+}
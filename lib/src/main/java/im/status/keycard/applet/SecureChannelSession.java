@@ -3,22 +3,27 @@ package im.status.keycard.applet;
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUException;
 import im.status.keycard.io.APDUResponse;
+import im.status.keycard.io.APDUWrapper;
 import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.LogicalCardChannel;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
 import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.macs.CBCBlockCipherMac;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.ISO7816d4Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
-import org.bouncycastle.jce.ECNamedCurveTable;
-import org.bouncycastle.jce.interfaces.ECPublicKey;
-import org.bouncycastle.jce.spec.ECParameterSpec;
-import org.bouncycastle.jce.spec.ECPublicKeySpec;
-
-import javax.crypto.Cipher;
-import javax.crypto.KeyAgreement;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.util.BigIntegers;
+
 import java.io.IOException;
-import java.security.*;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Handles a SecureChannel session with the card.
@@ -42,49 +47,68 @@ public class SecureChannelSession {
 
   private byte[] secret;
   private byte[] publicKey;
+  private byte[] cardKeyData;
+  private ECPublicKeyParameters cardKey;
   private byte[] iv;
+  private byte[] meta;
   private Pairing pairing;
-  private Cipher sessionCipher;
-  private CBCBlockCipherMac sessionMac;
-  private SecretKeySpec sessionEncKey;
-  private KeyParameter sessionMacKey;
+  private SecureChannelCrypto crypto;
   private SecureRandom random;
+  private EphemeralKeyPool keyPool;
   private boolean open;
+  private int logicalChannel;
+  private CompletableFuture<APDUResponse> pending;
 
   /**
    * Constructs a SecureChannel session on the client.
    */
   public SecureChannelSession() {
-      random = new SecureRandom();
+    this(new SecureRandom());
+  }
+
+  /**
+   * Constructs a SecureChannel session on the client, using the given random number generator for the EC-DH key, the
+   * challenges and the IVs. Meant for recording and replaying sessions, in normal operation use the default constructor.
+   *
+   * @param random the random number generator
+   */
+  public SecureChannelSession(SecureRandom random) {
+      this.random = random;
+      meta = new byte[SC_BLOCK_SIZE];
       open = false;
+      pending = CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Constructs a SecureChannel session on the client, taking the EC-DH keys from the given pool instead of generating
+   * them when the card is selected. The pool can be shared by several sessions.
+   *
+   * @param keyPool the pool of ephemeral keys
+   */
+  public SecureChannelSession(EphemeralKeyPool keyPool) {
+    this(new SecureRandom());
+    this.keyPool = keyPool;
   }
 
   /**
    * Generates a pairing secret. This should be called before each session. The public key of the card is used as input
-   * for the EC-DH algorithm. The output is stored as the secret.
+   * for the EC-DH algorithm. The output is stored as the secret. The decoded card key is kept, so selecting the same
+   * card again does not decode and validate its key again.
    *
    * @param keyData the public key returned by the applet as response to the SELECT command
    */
   public void generateSecret(byte[] keyData) {
-    try {
-      ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256k1");
-      KeyPairGenerator g = KeyPairGenerator.getInstance("ECDH", "BC");
-      g.initialize(ecSpec, random);
-
-      KeyPair keyPair = g.generateKeyPair();
-
-      publicKey = ((ECPublicKey) keyPair.getPublic()).getQ().getEncoded(false);
-      KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH", "BC");
-      keyAgreement.init(keyPair.getPrivate());
+    if (cardKey == null || !Arrays.equals(keyData, cardKeyData)) {
+      cardKey = new ECPublicKeyParameters(RecoverableSignature.CURVE.getCurve().decodePoint(keyData), RecoverableSignature.CURVE);
+      cardKeyData = keyData.clone();
+    }
 
-      ECPublicKeySpec cardKeySpec = new ECPublicKeySpec(ecSpec.getCurve().decodePoint(keyData), ecSpec);
-      ECPublicKey cardKey = (ECPublicKey) KeyFactory.getInstance("ECDSA", "BC").generatePublic(cardKeySpec);
+    AsymmetricCipherKeyPair keyPair = keyPool != null ? keyPool.take() : EphemeralKeyPool.generate(random);
+    publicKey = ((ECPublicKeyParameters) keyPair.getPublic()).getQ().getEncoded(false);
 
-      keyAgreement.doPhase(cardKey, true);
-      secret = keyAgreement.generateSecret();
-    } catch (Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
-    }
+    ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+    agreement.init(keyPair.getPrivate());
+    secret = BigIntegers.asUnsignedByteArray(agreement.getFieldSize(), agreement.calculateAgreement(cardKey));
   }
 
   /**
@@ -103,6 +127,16 @@ public class SecureChannelSession {
     return pairing;
   }
 
+  /**
+   * Sets the logical channel the session is established on. Since the CLA byte is part of the MAC, it must be encoded
+   * with the channel number before the protected commands are MACed rather than by the channel sending them.
+   *
+   * @param logicalChannel the logical channel number, 0 for the basic channel
+   */
+  public void setLogicalChannel(int logicalChannel) {
+    this.logicalChannel = logicalChannel;
+  }
+
   /**
    * Sets pairing information needed to open a secure channel.
    * @param pairing the pairing information
@@ -142,10 +176,7 @@ public class SecureChannelSession {
       byte[] keyData = md.digest(Arrays.copyOf(data, SC_SECRET_LENGTH));
       iv = Arrays.copyOfRange(data, SC_SECRET_LENGTH, data.length);
 
-      sessionEncKey = new SecretKeySpec(Arrays.copyOf(keyData, SC_SECRET_LENGTH), "AES");
-      sessionMacKey = new KeyParameter(keyData, SC_SECRET_LENGTH, SC_SECRET_LENGTH);
-      sessionCipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
-      sessionMac = new CBCBlockCipherMac(new AESEngine(), 128, null);
+      crypto = new SecureChannelCrypto(keyData, 0, keyData, SC_SECRET_LENGTH);
       open = true;
     } catch(Exception e) {
       throw new RuntimeException("Is BouncyCastle in the classpath?", e);
@@ -290,49 +321,16 @@ public class SecureChannelSession {
    * @throws IOException communication error
    */
   public void unpairOthers(CardChannel apduChannel) throws IOException, APDUException {
+    List<APDUCommand> cmds = new ArrayList<>(PAIRING_MAX_CLIENT_COUNT - 1);
+
     for (int i = 0; i < PAIRING_MAX_CLIENT_COUNT; i++) {
       if (i != pairing.getPairingIndex()) {
-        APDUCommand unpair = protectedCommand(0x80, INS_UNPAIR, i, 0, new byte[0]);
-        transmit(apduChannel, unpair).checkOK();
+        cmds.add(new APDUCommand(0x80, INS_UNPAIR, i, 0, new byte[0]));
       }
     }
-  }
-
-  /**
-   * Encrypts the plaintext data using the session key. The maximum plaintext size is 223 bytes. The returned ciphertext
-   * already includes the IV and padding and can be sent as-is in the APDU payload. If the input is an empty byte array
-   * the returned data will still contain the IV and padding.
-   *
-   * @param data the plaintext data
-   * @return the encrypted data
-   */
-  private byte[] encryptAPDU(byte[] data) {
-    assert data.length <= PAYLOAD_MAX_SIZE;
-
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
 
-      sessionCipher.init(Cipher.ENCRYPT_MODE, sessionEncKey, ivParameterSpec);
-      return sessionCipher.doFinal(data);
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
-    }
-  }
-
-  /**
-   * Decrypts the response from the card using the session key. The returned data is already stripped from IV and padding
-   * and can be potentially empty.
-   *
-   * @param data the ciphetext
-   * @return the plaintext
-   */
-  private byte[] decryptAPDU(byte[] data) {
-    try {
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      sessionCipher.init(Cipher.DECRYPT_MODE, sessionEncKey, ivParameterSpec);
-      return sessionCipher.doFinal(data);
-    } catch(Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
+    for (APDUResponse resp : transmitBatch(apduChannel, cmds)) {
+      resp.checkOK();
     }
   }
 
@@ -348,14 +346,22 @@ public class SecureChannelSession {
    */
   public APDUCommand protectedCommand(int cla, int ins, int p1, int p2, byte[] data) {
     byte[] finalData;
+    cla = LogicalCardChannel.setChannelNumber(cla, logicalChannel);
 
     if (open) {
-      data = encryptAPDU(data);
-      byte[] meta = new byte[]{(byte) cla, (byte) ins, (byte) p1, (byte) p2, (byte) (data.length + SC_BLOCK_SIZE), 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-      updateIV(meta, data);
-
-      finalData = Arrays.copyOf(iv, iv.length + data.length);
-      System.arraycopy(data, 0, finalData, iv.length, data.length);
+      // ISO7816-4 padding always adds at least one byte
+      int encryptedLength = SecureChannelCrypto.paddedLength(data.length);
+      finalData = new byte[SC_BLOCK_SIZE + encryptedLength];
+
+      Arrays.fill(meta, (byte) 0);
+      meta[0] = (byte) cla;
+      meta[1] = (byte) ins;
+      meta[2] = (byte) p1;
+      meta[3] = (byte) p2;
+      meta[4] = (byte) finalData.length;
+      crypto.encryptAndMac(iv, meta, data, 0, data.length, finalData, SC_BLOCK_SIZE, iv, 0);
+
+      System.arraycopy(iv, 0, finalData, 0, SC_BLOCK_SIZE);
     } else {
       finalData = data;
     }
@@ -373,27 +379,104 @@ public class SecureChannelSession {
    * @throws IOException transmission error
    */
   public APDUResponse transmit(CardChannel apduChannel, APDUCommand apdu) throws IOException {
-    APDUResponse resp = apduChannel.send(apdu);
+    return unwrapResponse(apduChannel.send(apdu));
+  }
+
+  /**
+   * Protects and transmits the given plain commands as a single batch, stopping at the first response which is not
+   * 0x9000. Each command is protected just before being sent and each response unwrapped as soon as it is received, so
+   * the IV chain is kept in order within the batch.
+   *
+   * @param apduChannel the APDU channel
+   * @param cmds the commands to protect and send
+   * @return the unwrapped responses, one for each command sent
+   * @throws IOException communication error
+   */
+  public List<APDUResponse> transmitBatch(CardChannel apduChannel, List<APDUCommand> cmds) throws IOException {
+    return apduChannel.sendBatch(cmds, new APDUWrapper() {
+      @Override
+      public APDUCommand wrap(APDUCommand cmd) {
+        return protectedCommand(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData());
+      }
+
+      @Override
+      public APDUResponse unwrap(APDUResponse resp) throws IOException {
+        return unwrapResponse(resp);
+      }
+    });
+  }
+
+  /**
+   * Asynchronously protects and transmits a command, then unwraps the response. Since each command is MACed with the
+   * IV resulting from the previous response, the command is only protected once all commands previously submitted
+   * through this method have completed, so calls can be chained freely without waiting on the returned futures. A
+   * failed command does not stop the following ones, but since the IV chain is then broken they will fail too unless
+   * the secure channel is reopened. Do not mix with the synchronous methods while commands are pending.
+   *
+   * @param apduChannel the APDU channel
+   * @param cla the CLA byte
+   * @param ins the INS byte
+   * @param p1 the P1 byte
+   * @param p2 the P2 byte
+   * @param data the data, can be an empty array but not null
+   * @return the future unwrapped response APDU
+   */
+  public synchronized CompletableFuture<APDUResponse> transmitAsync(CardChannel apduChannel, int cla, int ins, int p1, int p2, byte[] data) {
+    CompletableFuture<APDUResponse> result = pending
+        .handle((resp, e) -> null)
+        .thenCompose(v -> apduChannel.sendAsync(protectedCommand(cla, ins, p1, p2, data)))
+        .thenCompose(resp -> {
+          CompletableFuture<APDUResponse> unwrapped = new CompletableFuture<>();
+
+          try {
+            unwrapped.complete(unwrapResponse(resp));
+          } catch (Throwable e) {
+            unwrapped.completeExceptionally(e);
+          }
+
+          return unwrapped;
+        });
+
+    pending = result;
+    return result;
+  }
 
+  /**
+   * Unwraps a response received on the secure channel. The MAC is verified, the data decrypted and the SW read from the
+   * payload. The data is decrypted in place, so the returned response is backed by the buffer of the received one.
+   *
+   * @param resp the response from the card
+   * @return the unwrapped response APDU
+   * @throws IOException invalid MAC
+   */
+  private APDUResponse unwrapResponse(APDUResponse resp) throws IOException {
     if (resp.getSw() == 0x6982) {
       open = false;
     }
 
     if (open) {
-      byte[] data = resp.getData();
-      byte[] meta = new byte[]{(byte) data.length, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-      byte[] mac = Arrays.copyOf(data, iv.length);
-      data = Arrays.copyOfRange(data, iv.length, data.length);
+      byte[] buf = resp.getBuffer();
+      int macOff = resp.getDataOffset();
+      int len = resp.getDataLength();
+
+      if (len < SC_BLOCK_SIZE) {
+        throw new IOException("Invalid MAC");
+      }
 
-      byte[] plainData = decryptAPDU(data);
+      Arrays.fill(meta, (byte) 0);
+      meta[0] = (byte) len;
 
-      updateIV(meta, data);
+      int dataOff = macOff + SC_BLOCK_SIZE;
+      int dataLen = len - SC_BLOCK_SIZE;
+      int plainLen = crypto.macAndDecrypt(iv, meta, buf, dataOff, dataLen, buf, macOff, buf, dataOff, iv, 0);
 
-      if (!Arrays.equals(iv, mac)) {
+      if (plainLen == SecureChannelCrypto.INVALID_MAC) {
         throw new IOException("Invalid MAC");
+      } else if (plainLen < 2) {
+        throw new IOException("Invalid response payload");
       }
 
-      return new APDUResponse(plainData);
+      return new APDUResponse(buf, dataOff, plainLen);
     } else {
       return resp;
     }
@@ -416,11 +499,12 @@ public class SecureChannelSession {
     try {
       iv = new byte[SC_BLOCK_SIZE];
       random.nextBytes(iv);
-      IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-      sessionEncKey = new SecretKeySpec(secret, "AES");
-      sessionCipher = Cipher.getInstance("AES/CBC/ISO7816-4Padding", "BC");
-      sessionCipher.init(Cipher.ENCRYPT_MODE, sessionEncKey, ivParameterSpec);
-      initData = sessionCipher.doFinal(initData);
+      PaddedBufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new ISO7816d4Padding());
+      cipher.init(true, new ParametersWithIV(new KeyParameter(secret), iv));
+      byte[] ciphertext = new byte[cipher.getOutputSize(initData.length)];
+      int len = cipher.processBytes(initData, 0, initData.length, ciphertext, 0);
+      len += cipher.doFinal(ciphertext, len);
+      initData = Arrays.copyOf(ciphertext, len);
       byte[] encrypted = new byte[1 + publicKey.length + iv.length + initData.length];
       encrypted[0] = (byte) publicKey.length;
       System.arraycopy(publicKey, 0, encrypted, 1, publicKey.length);
@@ -440,21 +524,4 @@ public class SecureChannelSession {
   protected void setOpen() {
     open = true;
   }
-
-  /**
-   * Calculates a CMAC from the metadata and data provided and sets it as the IV for the next message.
-   *
-   * @param meta metadata
-   * @param data data
-   */
-  private void updateIV(byte[] meta, byte[] data) {
-    try {
-      sessionMac.init(sessionMacKey);
-      sessionMac.update(meta, 0, meta.length);
-      sessionMac.update(data, 0, data.length);
-      sessionMac.doFinal(iv, 0);
-    } catch (Exception e) {
-      throw new RuntimeException("Is BouncyCastle in the classpath?", e);
-    }
-  }
 }
@@ -14,6 +14,7 @@ public class TinyBERTLV {
 
   private byte[] buffer;
   private int pos;
+  private int end;
 
   public static int[] readNum(byte[] buf, int off) {
     int len = buf[off++] & 0xff;
@@ -67,8 +68,20 @@ public class TinyBERTLV {
   }
 
   public TinyBERTLV(byte[] buffer) {
+    this(buffer, 0, buffer.length);
+  }
+
+  /**
+   * Constructs a TLV reader over a slice of the given buffer. The buffer is read in place and not copied.
+   *
+   * @param buffer the buffer
+   * @param offset the offset of the TLV data
+   * @param length the length of the TLV data
+   */
+  public TinyBERTLV(byte[] buffer, int offset, int length) {
     this.buffer = buffer;
-    this.pos = 0;
+    this.pos = offset;
+    this.end = offset + length;
   }
 
   /**
@@ -125,7 +138,7 @@ public class TinyBERTLV {
    * @return all unread bytes
    */
   byte[] peekUnread() {
-    return Arrays.copyOfRange(buffer, pos, buffer.length);
+    return Arrays.copyOfRange(buffer, pos, end);
   }
 
   /**
@@ -133,7 +146,7 @@ public class TinyBERTLV {
    * end of the TLV has been reached.
    */
   public void unreadLastTag() {
-    if (pos < buffer.length) {
+    if (pos < end) {
       pos--;
     }
   }
@@ -144,7 +157,7 @@ public class TinyBERTLV {
    * @return the tag
    */
   public int readTag() {
-    return (pos < buffer.length) ? buffer[pos++] : END_OF_TLV;
+    return (pos < end) ? buffer[pos++] : END_OF_TLV;
   }
 
   /**
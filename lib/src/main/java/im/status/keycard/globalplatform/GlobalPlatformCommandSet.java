@@ -7,11 +7,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUException;
 import im.status.keycard.io.APDUResponse;
 import im.status.keycard.io.CardChannel;
+import im.status.keycard.io.CardTransaction;
+import im.status.keycard.io.Deadline;
+import im.status.keycard.io.DeadlineCardChannel;
 
 /**
  * Command set used for loading, installing and removing applets and packages. This class is generic and can work with
@@ -33,7 +38,7 @@ public class GlobalPlatformCommandSet {
   static final byte LOAD_P1_MORE_BLOCKS = (byte) 0x00;
   static final byte LOAD_P1_LAST_BLOCK = (byte) 0x80;
 
-  private final CardChannel apduChannel;
+  private final DeadlineCardChannel apduChannel;
   private SecureChannel secureChannel;
   private SCP02Keys cardKeys;
   private Session session;
@@ -49,10 +54,19 @@ public class GlobalPlatformCommandSet {
    * @param apduChannel the channel to the card
    */
   public GlobalPlatformCommandSet(CardChannel apduChannel) {
-    this.apduChannel = apduChannel;
+    this.apduChannel = new DeadlineCardChannel(apduChannel);
     setCardKeys(developmentKey);
   }
 
+  /**
+   * Sets the deadline of the commands sent from now on, including the ones protected by the SCP02 secure channel.
+   *
+   * @param deadline the deadline
+   */
+  public void setDeadline(Deadline deadline) {
+    apduChannel.setDeadline(deadline);
+  }
+
   /**
    * Sets the given key as all of ENC, MAC and DEK static keys, used to derive session keys.
    * @param key the key
@@ -132,6 +146,18 @@ public class GlobalPlatformCommandSet {
   }
 
 
+  /**
+   * Begins an exclusive transaction on the card. Running a whole installation, from opening the secure channel to the
+   * last INSTALL command, in one transaction keeps other applications from interrupting it. Close the returned
+   * transaction to end it.
+   *
+   * @return the transaction
+   * @throws IOException communication error
+   */
+  public CardTransaction beginTransaction() throws IOException {
+    return CardTransaction.begin(apduChannel);
+  }
+
   /**
    * Convenience method for openSecureChannel with auto key ugprade.
    *
@@ -156,11 +182,18 @@ public class GlobalPlatformCommandSet {
     SecureRandom random = new SecureRandom();
     byte[] hostChallenge = new byte[8];
     random.nextBytes(hostChallenge);
-    initializeUpdate(hostChallenge).checkOK();
-    externalAuthenticate(hostChallenge).checkOK();
 
-    if (this.session.usesFallbackKeys() && autoUpgradeKeys) {
-      this.putSCP02Keys(this.cardKeys.getEncKeyData(), this.cardKeys.getMacKeyData(), this.cardKeys.getDekKeyData(), 0, 1).checkOK();
+    CardTransaction tx = beginTransaction();
+
+    try {
+      initializeUpdate(hostChallenge).checkOK();
+      externalAuthenticate(hostChallenge).checkOK();
+
+      if (this.session.usesFallbackKeys() && autoUpgradeKeys) {
+        this.putSCP02Keys(this.cardKeys.getEncKeyData(), this.cardKeys.getMacKeyData(), this.cardKeys.getDekKeyData(), 0, 1).checkOK();
+      }
+    } finally {
+      tx.close();
     }
   }
 
@@ -323,15 +356,30 @@ public class GlobalPlatformCommandSet {
   public void loadKeycardPackage(InputStream in, LoadCallback cb) throws IOException, APDUException {
     installForLoad(Identifiers.PACKAGE_AID).checkOK();
 
-    Load load = new Load(in);
+    Load load = new Load(in, loadBlockSize());
 
     byte[] block;
-    int steps = load.blocksCount();
+    List<APDUCommand> cmds = new ArrayList<>(load.blocksCount());
 
     while((block = load.nextDataBlock()) != null) {
-      load(block, (load.getCount() - 1), load.hasMore()).checkOK();
-      cb.blockLoaded(load.getCount(), steps);
+      cmds.add(loadCommand(block, (load.getCount() - 1), load.hasMore()));
     }
+
+    List<APDUResponse> responses = secureChannel.sendBatch(cmds, cb);
+
+    for (APDUResponse resp : responses) {
+      resp.checkOK();
+    }
+  }
+
+  /**
+   * Returns the largest LOAD block which fits in a single APDU on the current channel once the SCP02 MAC is appended.
+   * If the channel supports extended length APDUs, this allows loading the package with far fewer commands.
+   *
+   * @return the block size
+   */
+  private int loadBlockSize() {
+    return APDUCommand.maxDataLength(apduChannel.getMaxTransceiveLength()) - 8;
   }
 
   /**
@@ -382,9 +430,20 @@ public class GlobalPlatformCommandSet {
    * @throws IOException communication error
    */
   public APDUResponse load(byte[] data, int count, boolean hasMoreBlocks) throws IOException {
+    return this.secureChannel.send(loadCommand(data, count, hasMoreBlocks));
+  }
+
+  /**
+   * Builds an unprotected LOAD APDU.
+   *
+   * @param data the data of the block
+   * @param count the block number
+   * @param hasMoreBlocks whether there are more blocks coming or not
+   * @return the LOAD APDU
+   */
+  private APDUCommand loadCommand(byte[] data, int count, boolean hasMoreBlocks) {
     int p1 = hasMoreBlocks ? LOAD_P1_MORE_BLOCKS : LOAD_P1_LAST_BLOCK;
-    APDUCommand cmd = new APDUCommand(0x80, INS_LOAD, p1, count, data);
-    return this.secureChannel.send(cmd);
+    return new APDUCommand(0x80, INS_LOAD, p1, count, data);
   }
 
   /**
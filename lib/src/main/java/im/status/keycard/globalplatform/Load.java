@@ -21,6 +21,7 @@ public class Load {
   private static String[] fileNames = {"Header", "Directory", "Import", "Applet",
       "Class", "Method", "StaticField", "Export", "ConstantPool", "RefLocation"};
 
+  private int blockSize;
   private int offset;
   private int count;
   private byte[] fullData;
@@ -33,6 +34,24 @@ public class Load {
    * @throws IOException
    */
   public Load(InputStream in) throws FileNotFoundException, IOException {
+    this(in, BLOCK_SIZE);
+  }
+
+  /**
+   * Reads a CAP file from the given input stream, which will be split in blocks of the given size. The block size must
+   * leave room for the SCP02 MAC in the LOAD command.
+   *
+   * @param in the inpu stream
+   * @param blockSize the size of each block
+   * @throws FileNotFoundException
+   * @throws IOException
+   */
+  public Load(InputStream in, int blockSize) throws FileNotFoundException, IOException {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Invalid block size");
+    }
+
+    this.blockSize = blockSize;
     this.offset = 0;
     this.count = 0;
     Map<String, byte[]> files = this.loadFiles(in);
@@ -83,7 +102,7 @@ public class Load {
    * @return the block count
    */
   public int blocksCount() {
-    return (int) Math.ceil(this.fullData.length / (float) BLOCK_SIZE);
+    return (int) Math.ceil(this.fullData.length / (float) blockSize);
   }
 
   /**
@@ -96,7 +115,7 @@ public class Load {
       return null;
     }
 
-    int rangeEnd = this.offset + BLOCK_SIZE;
+    int rangeEnd = this.offset + blockSize;
     if (rangeEnd >= this.fullData.length) {
       rangeEnd = this.fullData.length;
     }
@@ -5,11 +5,12 @@ import java.io.IOException;
 import java.util.Arrays;
 
 import im.status.keycard.io.APDUCommand;
+import im.status.keycard.io.APDUWrapper;
 
 /**
  * Adds a SCP02 MAC to APDUs.
  */
-public class SCP02Wrapper {
+public class SCP02Wrapper implements APDUWrapper {
   private byte[] macKeyData;
   private byte[] icv;
 
@@ -28,6 +29,7 @@ public class SCP02Wrapper {
    * @param cmd the APDU to wrap
    * @return the wrapped APDU
    */
+  @Override
   public APDUCommand wrap(APDUCommand cmd) {
     try {
       int cla = (cmd.getCla() | 0x04) & 0xff;
@@ -38,7 +40,16 @@ public class SCP02Wrapper {
       macData.write(cmd.getIns());
       macData.write(cmd.getP1());
       macData.write(cmd.getP2());
-      macData.write(data.length + 8);
+
+      int lc = data.length + 8;
+
+      // the MAC covers LC as it is encoded in the wrapped APDU
+      if (lc > APDUCommand.MAX_SHORT_LC || cmd.getNe() > APDUCommand.MAX_SHORT_NE) {
+        macData.write(0);
+        macData.write(lc >> 8);
+      }
+
+      macData.write(lc);
       macData.write(data);
 
       byte[] icv;
@@ -53,7 +64,7 @@ public class SCP02Wrapper {
       System.arraycopy(data, 0, newData, 0, data.length );
       System.arraycopy(mac, 0, newData, data.length, mac.length );
 
-      APDUCommand wrapped = new APDUCommand(cla, cmd.getIns(), cmd.getP1(), cmd.getP2(), newData, cmd.getNeedsLE());
+      APDUCommand wrapped = new APDUCommand(cla, cmd.getIns(), cmd.getP1(), cmd.getP2(), newData, cmd.getNe());
       this.icv = mac.clone();
 
       return wrapped;
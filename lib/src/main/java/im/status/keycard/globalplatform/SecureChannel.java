@@ -1,16 +1,18 @@
 package im.status.keycard.globalplatform;
 
 import java.io.IOException;
+import java.util.List;
 
 import im.status.keycard.io.APDUCommand;
 import im.status.keycard.io.APDUException;
 import im.status.keycard.io.APDUResponse;
+import im.status.keycard.io.APDUWrapper;
 import im.status.keycard.io.CardChannel;
 
 /**
  * An SCP02 Secure Channel. Wraps a CardChannel to allow transparent handling of the secure channel.
  */
-public class SecureChannel {
+public class SecureChannel implements APDUWrapper {
   private CardChannel channel;
   private SCP02Wrapper wrapper;
 
@@ -42,6 +44,66 @@ public class SecureChannel {
     return this.channel.send(wrappedCommand);
   }
 
+  /**
+   * Protects the given commands with SCP02 and sends them as a batch on the underlying CardChannel, stopping at the first
+   * response which is not 0x9000.
+   *
+   * @param cmds the commands to send
+   * @return the responses from the card, one for each command sent
+   *
+   * @throws IOException communication error
+   */
+  public List<APDUResponse> sendBatch(List<APDUCommand> cmds) throws IOException {
+    return sendBatch(cmds, null);
+  }
+
+  /**
+   * Same as sendBatch(List), calling the given callback after each successful response with the number of commands
+   * completed so far and the size of the batch. Used to report the progress of LOAD.
+   *
+   * @param cmds the commands to send
+   * @param cb the progress callback, or null
+   * @return the responses from the card, one for each command sent
+   *
+   * @throws IOException communication error
+   */
+  public List<APDUResponse> sendBatch(List<APDUCommand> cmds, LoadCallback cb) throws IOException {
+    if (cb == null) {
+      return this.channel.sendBatch(cmds, this);
+    }
+
+    final int steps = cmds.size();
+
+    return this.channel.sendBatch(cmds, new APDUWrapper() {
+      private int completed = 0;
+
+      @Override
+      public APDUCommand wrap(APDUCommand cmd) {
+        return wrapper.wrap(cmd);
+      }
+
+      @Override
+      public APDUResponse unwrap(APDUResponse resp) {
+        if (resp.isOK()) {
+          cb.blockLoaded(++completed, steps);
+        }
+
+        return resp;
+      }
+    });
+  }
+
+  /**
+   * Adds the SCP02 MAC to the given command.
+   *
+   * @param cmd the command to wrap
+   * @return the wrapped command
+   */
+  @Override
+  public APDUCommand wrap(APDUCommand cmd) {
+    return this.wrapper.wrap(cmd);
+  }
+
   /**
    * Verifies the card challenge and builds an SCP02 session object.
    *
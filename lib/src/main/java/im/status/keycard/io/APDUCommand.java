@@ -1,12 +1,45 @@
 package im.status.keycard.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * ISO7816-4 APDU.
  */
 public class APDUCommand {
+  /**
+   * The maximum length of the data field of a short APDU.
+   */
+  public static final int MAX_SHORT_LC = 255;
+
+  /**
+   * The maximum length of the data field of an extended APDU.
+   */
+  public static final int MAX_EXTENDED_LC = 65535;
+
+  /**
+   * The maximum response data length which can be requested with a short APDU.
+   */
+  public static final int MAX_SHORT_NE = 256;
+
+  /**
+   * The maximum response data length which can be requested with an extended APDU.
+   */
+  public static final int MAX_EXTENDED_NE = 65536;
+
+  /**
+   * The maximum length of a serialized short APDU.
+   */
+  public static final int MAX_SHORT_LENGTH = 4 + 1 + MAX_SHORT_LC + 1;
+
+  /**
+   * The maximum length of a serialized extended APDU.
+   */
+  public static final int MAX_EXTENDED_LENGTH = 4 + 3 + MAX_EXTENDED_LC + 2;
+
+  private static final int HEADER_LENGTH = 4;
+
   protected int cla;
   protected int ins;
   protected int p1;
@@ -14,6 +47,7 @@ public class APDUCommand {
   protected int lc;
   protected byte[] data;
   protected boolean needsLE;
+  protected int ne;
 
   /**
    * Constructs an APDU with no response data length field. The data field cannot be null, but can be a zero-length array.
@@ -40,12 +74,52 @@ public class APDUCommand {
    * @param needsLE whether the LE byte should be sent or not
    */
   public APDUCommand(int cla, int ins, int p1, int p2, byte[] data, boolean needsLE) {
+    this(cla, ins, p1, p2, data, needsLE ? MAX_SHORT_NE : 0);
+  }
+
+  /**
+   * Constructs an APDU expecting up to ne bytes of response data. The data field cannot be null, but can be a
+   * zero-length array. If ne is 0 no LE field is sent. The extended length encoding is used automatically if the data
+   * field is longer than 255 bytes or ne is larger than 256.
+   *
+   * @param cla class byte
+   * @param ins instruction code
+   * @param p1 P1 parameter
+   * @param p2 P2 parameter
+   * @param data the APDU data
+   * @param ne the maximum number of response data bytes expected, between 0 and 65536
+   */
+  public APDUCommand(int cla, int ins, int p1, int p2, byte[] data, int ne) {
+    if (data.length > MAX_EXTENDED_LC) {
+      throw new IllegalArgumentException("The data field cannot be longer than 65535 bytes");
+    }
+
+    if (ne < 0 || ne > MAX_EXTENDED_NE) {
+      throw new IllegalArgumentException("The expected response length must be between 0 and 65536");
+    }
+
     this.cla = cla & 0xff;
     this.ins = ins & 0xff;
     this.p1 = p1 & 0xff;
     this.p2 = p2 & 0xff;
     this.data = data;
-    this.needsLE = needsLE;
+    this.needsLE = ne > 0;
+    this.ne = ne;
+  }
+
+  /**
+   * Returns the maximum data field length of an APDU which can be transmitted on a channel with the given maximum
+   * transceive length, keeping into account the space needed for the header and the LE field.
+   *
+   * @param maxTransceiveLength the maximum length of a serialized APDU
+   * @return the maximum data field length
+   */
+  public static int maxDataLength(int maxTransceiveLength) {
+    if (maxTransceiveLength <= MAX_SHORT_LENGTH) {
+      return Math.max(0, maxTransceiveLength - (HEADER_LENGTH + 2));
+    } else {
+      return Math.min(MAX_EXTENDED_LC, maxTransceiveLength - (HEADER_LENGTH + 5));
+    }
   }
 
   /**
@@ -54,19 +128,178 @@ public class APDUCommand {
    * @return the byte array representation of the APDU
    */
   public byte[] serialize() throws IOException {
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    out.write(this.cla);
-    out.write(this.ins);
-    out.write(this.p1);
-    out.write(this.p2);
-    out.write(this.data.length);
-    out.write(this.data);
-
-    if (this.needsLE) {
-      out.write(0); // Response length
+    byte[] out = new byte[getSerializedLength()];
+    serialize(0, out, 0, out.length);
+    return out;
+  }
+
+  /**
+   * Serializes the APDU in the given buffer, starting at the given offset. The buffer must have at least
+   * getSerializedLength() bytes available from the offset.
+   *
+   * @param buf the destination buffer
+   * @param off the offset in the destination buffer
+   * @return the number of bytes written
+   */
+  public int serialize(byte[] buf, int off) {
+    int length = getSerializedLength();
+
+    if (buf.length - off < length) {
+      throw new IllegalArgumentException("The buffer is too small to hold the APDU");
     }
 
-    return out.toByteArray();
+    return serialize(0, buf, off, length);
+  }
+
+  /**
+   * Serializes the APDU at the current position of the given buffer, which can be direct or heap-based. The position of
+   * the buffer is advanced by the number of bytes written.
+   *
+   * @param buf the destination buffer
+   * @throws BufferOverflowException if the buffer has not enough remaining space
+   */
+  public void serialize(ByteBuffer buf) {
+    int length = getSerializedLength();
+
+    if (buf.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+
+    if (buf.hasArray()) {
+      serialize(0, buf.array(), buf.arrayOffset() + buf.position(), length);
+      buf.position(buf.position() + length);
+    } else {
+      int headerLength = getHeaderLength();
+
+      for (int i = 0; i < headerLength; i++) {
+        buf.put(headerByte(i));
+      }
+
+      buf.put(this.data);
+
+      int trailerLength = getTrailerLength();
+
+      for (int i = 0; i < trailerLength; i++) {
+        buf.put(trailerByte(i, trailerLength));
+      }
+    }
+  }
+
+  /**
+   * Serializes a window of the APDU. The window starts at the given offset of the serialized APDU and is at most
+   * length bytes long. This allows splitting an APDU in transport frames without serializing it as a whole first.
+   *
+   * @param offset the offset in the serialized APDU
+   * @param buf the destination buffer
+   * @param off the offset in the destination buffer
+   * @param length the maximum number of bytes to write
+   * @return the number of bytes written, which is less than length only if the end of the APDU has been reached
+   */
+  public int serialize(int offset, byte[] buf, int off, int length) {
+    int headerLength = getHeaderLength();
+    int trailerLength = getTrailerLength();
+    int dataEnd = headerLength + this.data.length;
+    int end = Math.min(offset + length, dataEnd + trailerLength);
+    int pos = offset;
+
+    while (pos < end && pos < headerLength) {
+      buf[off++] = headerByte(pos++);
+    }
+
+    int copyEnd = Math.min(end, dataEnd);
+
+    if (pos < copyEnd) {
+      System.arraycopy(this.data, (pos - headerLength), buf, off, (copyEnd - pos));
+      off += (copyEnd - pos);
+      pos = copyEnd;
+    }
+
+    while (pos < end) {
+      buf[off++] = trailerByte(pos++ - dataEnd, trailerLength);
+    }
+
+    return end - offset;
+  }
+
+  /**
+   * Returns the length of the serialized APDU.
+   *
+   * @return the length of the serialized APDU
+   */
+  public int getSerializedLength() {
+    return getHeaderLength() + this.data.length + getTrailerLength();
+  }
+
+  /**
+   * Returns whether the APDU is serialized using the extended length encoding.
+   *
+   * @return whether the APDU is serialized using the extended length encoding
+   */
+  public boolean isExtended() {
+    return this.data.length > MAX_SHORT_LC || this.ne > MAX_SHORT_NE;
+  }
+
+  /**
+   * The length of CLA, INS, P1, P2 and the LC field. As in the short encoding LC is always sent, even for an empty data
+   * field, while in the extended encoding it is omitted in that case.
+   */
+  private int getHeaderLength() {
+    if (!isExtended()) {
+      return HEADER_LENGTH + 1;
+    }
+
+    return this.data.length > 0 ? HEADER_LENGTH + 3 : HEADER_LENGTH;
+  }
+
+  /**
+   * The length of the LE field. In the extended encoding with no data field, LE carries the leading zero byte.
+   */
+  private int getTrailerLength() {
+    if (!this.needsLE) {
+      return 0;
+    } else if (!isExtended()) {
+      return 1;
+    }
+
+    return this.data.length > 0 ? 2 : 3;
+  }
+
+  private byte headerByte(int i) {
+    switch (i) {
+      case 0:
+        return (byte) this.cla;
+      case 1:
+        return (byte) this.ins;
+      case 2:
+        return (byte) this.p1;
+      case 3:
+        return (byte) this.p2;
+      default:
+        if (!isExtended()) {
+          return (byte) this.data.length;
+        }
+
+        switch (i) {
+          case 4:
+            return 0;
+          case 5:
+            return (byte) (this.data.length >> 8);
+          default:
+            return (byte) this.data.length;
+        }
+    }
+  }
+
+  private byte trailerByte(int i, int trailerLength) {
+    // The maximum values, 256 and 65536, are encoded as all zeroes
+    switch (trailerLength - i) {
+      case 1:
+        return (byte) this.ne;
+      case 2:
+        return (byte) (this.ne >> 8);
+      default:
+        return 0;
+    }
   }
 
   /**
@@ -122,4 +355,13 @@ public class APDUCommand {
   public boolean getNeedsLE() {
     return this.needsLE;
   }
+
+  /**
+   * Returns the maximum number of response data bytes expected, or 0 if LE is not sent.
+   *
+   * @return the maximum number of response data bytes expected
+   */
+  public int getNe() {
+    return this.ne;
+  }
 }
@@ -1,5 +1,8 @@
 package im.status.keycard.io;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * ISO7816-4 APDU response.
  */
@@ -13,6 +16,8 @@ public class APDUResponse {
   public static final int SW_WRONG_PIN_MASK = 0x63C0;
 
   private byte[] apdu;
+  private int offset;
+  private int length;
   private byte[] data;
   private int sw;
   private int sw1;
@@ -24,25 +29,38 @@ public class APDUResponse {
    * @param apdu the raw response from the card.
    */
   public APDUResponse(byte[] apdu)  {
-    if (apdu.length < 2) {
+    this(apdu, 0, apdu.length);
+  }
+
+  /**
+   * Creates an APDU object by parsing the raw response from the card, which is found in the given buffer at the given
+   * offset. The response is backed by the buffer, which is not copied and must not be modified while the response is
+   * in use.
+   *
+   * @param buf the buffer holding the raw response from the card
+   * @param offset the offset of the response in the buffer
+   * @param length the length of the response
+   */
+  public APDUResponse(byte[] buf, int offset, int length) {
+    if (length < 2) {
       throw new IllegalArgumentException("APDU response must be at least 2 bytes");
     }
-    this.apdu = apdu;
+
+    this.apdu = buf;
+    this.offset = offset;
+    this.length = length;
     this.parse();
   }
 
   /**
-   * Parses the APDU response, separating the response data from SW.
+   * Parses the APDU response, reading the SW. The response data is not copied.
    */
   private void parse() {
-    int length = this.apdu.length;
+    int end = this.offset + this.length;
 
-    this.sw1 = this.apdu[length - 2] & 0xff;
-    this.sw2 = this.apdu[length - 1] & 0xff;
+    this.sw1 = this.apdu[end - 2] & 0xff;
+    this.sw2 = this.apdu[end - 1] & 0xff;
     this.sw = (this.sw1 << 8) | this.sw2;
-
-    this.data = new byte[length - 2];
-    System.arraycopy(this.apdu, 0, this.data, 0, length - 2);
   }
 
   /**
@@ -132,14 +150,55 @@ public class APDUResponse {
   }
 
   /**
-   * Returns the data field of this APDU.
+   * Returns the data field of this APDU. The data is copied from the underlying buffer on the first invocation, use
+   * getBuffer, getDataOffset and getDataLength to read it in place.
    *
    * @return the data field of this APDU
    */
   public byte[] getData() {
+    if (this.data == null) {
+      this.data = Arrays.copyOfRange(this.apdu, this.offset, (this.offset + this.length - 2));
+    }
+
     return this.data;
   }
 
+  /**
+   * Returns the offset of the data field in the buffer returned by getBuffer.
+   *
+   * @return the offset of the data field
+   */
+  public int getDataOffset() {
+    return this.offset;
+  }
+
+  /**
+   * Returns the length of the data field.
+   *
+   * @return the length of the data field
+   */
+  public int getDataLength() {
+    return this.length - 2;
+  }
+
+  /**
+   * Returns a ByteBuffer view of the data field. The view is backed by the underlying buffer, so no data is copied.
+   *
+   * @return a view of the data field
+   */
+  public ByteBuffer getDataBuffer() {
+    return ByteBuffer.wrap(this.apdu, this.offset, (this.length - 2)).slice();
+  }
+
+  /**
+   * Returns the buffer backing this response. The response starts at the offset returned by getDataOffset.
+   *
+   * @return the underlying buffer
+   */
+  public byte[] getBuffer() {
+    return this.apdu;
+  }
+
   /**
    * Returns the Status Word.
    *
@@ -171,6 +230,10 @@ public class APDUResponse {
    * @return raw APDU data
    */
   public byte[] getBytes() {
-    return this.apdu;
+    if (this.offset == 0 && this.length == this.apdu.length) {
+      return this.apdu;
+    }
+
+    return Arrays.copyOfRange(this.apdu, this.offset, (this.offset + this.length));
   }
 }
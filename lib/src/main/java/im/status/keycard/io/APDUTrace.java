@@ -0,0 +1,87 @@
+package im.status.keycard.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Constants and encoding helpers of the binary APDU trace format written by RecordingCardChannel and read by
+ * ReplayCardChannel.
+ *
+ * A trace starts with the magic "KCTR" followed by a version byte. Records follow, each starting with a type byte.
+ * All integers are unsigned LEB128 varints, all times are in microseconds.
+ *
+ * <ul>
+ *   <li>EXCHANGE: time since start, duration, command length, command, response length, response</li>
+ *   <li>FAILURE: time since start, duration, command length, command, message length, UTF-8 message</li>
+ *   <li>RANDOM: length, bytes returned by the host random number generator</li>
+ * </ul>
+ */
+final class APDUTrace {
+  static final byte[] MAGIC = {'K', 'C', 'T', 'R'};
+  static final int VERSION = 1;
+
+  static final int RECORD_EXCHANGE = 1;
+  static final int RECORD_FAILURE = 2;
+  static final int RECORD_RANDOM = 3;
+
+  private APDUTrace() {}
+
+  static void writeVarint(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+
+    out.write((int) value);
+  }
+
+  static void writeBytes(OutputStream out, byte[] data) throws IOException {
+    writeVarint(out, data.length);
+    out.write(data);
+  }
+
+  static long readVarint(InputStream in) throws IOException {
+    long value = 0;
+
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+
+      if (b < 0) {
+        throw new EOFException("Truncated trace");
+      }
+
+      value |= (long) (b & 0x7f) << shift;
+
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+
+    throw new IOException("Invalid varint in trace");
+  }
+
+  static byte[] readBytes(InputStream in) throws IOException {
+    long length = readVarint(in);
+
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Invalid length in trace");
+    }
+
+    byte[] data = new byte[(int) length];
+    int off = 0;
+
+    while (off < data.length) {
+      int read = in.read(data, off, data.length - off);
+
+      if (read < 0) {
+        throw new EOFException("Truncated trace");
+      }
+
+      off += read;
+    }
+
+    return data;
+  }
+}
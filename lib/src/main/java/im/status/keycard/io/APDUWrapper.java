@@ -0,0 +1,30 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * Transforms commands before they are sent and responses after they are received, for example to add the protection of
+ * a secure channel. Used by batches, where each command must be wrapped only once the previous response has been
+ * unwrapped.
+ */
+public interface APDUWrapper {
+  /**
+   * Wraps the command about to be sent.
+   *
+   * @param cmd the command
+   * @return the wrapped command
+   * @throws IOException the command could not be wrapped
+   */
+  APDUCommand wrap(APDUCommand cmd) throws IOException;
+
+  /**
+   * Unwraps a response received for a wrapped command. The default returns the response unchanged.
+   *
+   * @param resp the response
+   * @return the unwrapped response
+   * @throws IOException the response could not be unwrapped
+   */
+  default APDUResponse unwrap(APDUResponse resp) throws IOException {
+    return resp;
+  }
+}
@@ -0,0 +1,195 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A CardChannel decorator giving each command a timeout learned from the latency observed for its INS. Until enough
+ * samples have been collected for an INS, its commands get the initial timeout. Then the timeout is the given
+ * percentile of the observed latencies multiplied by a safety factor, kept between a minimum and the initial timeout.
+ * A hung GENERATE KEY or SIGN is therefore cut off after a small multiple of its usual duration, while commands which
+ * are always slow, like LOAD KEY, keep a timeout matching their own latency.
+ *
+ * If an INS becomes slower for good, for example because a different card is used, its commands time out one after the
+ * other. After RESET_AFTER_TIMEOUTS consecutive timeouts, the latency observed for the INS is forgotten and its
+ * commands get the initial timeout again until enough new samples have been collected. The timeout is combined with
+ * the deadline passed to send, the earliest applying. Timeouts caused by the deadline passed to send are neither
+ * recorded as latency nor counted as consecutive timeouts.
+ */
+public class AdaptiveTimeoutCardChannel implements CardChannel {
+  /**
+   * The number of consecutive timeouts of an INS after which its observed latency is discarded.
+   */
+  public static final int RESET_AFTER_TIMEOUTS = 3;
+
+  private static final int REFRESH_INTERVAL = 16;
+
+  private final CardChannel channel;
+  private final long initialTimeoutNanos;
+  private final long minTimeoutNanos;
+  private final double percentile;
+  private final double factor;
+  private final int minSamples;
+  private final AtomicReferenceArray<LatencyHistogram> histograms;
+  private final AtomicLongArray samples;
+  private final AtomicLongArray timeouts;
+  private final AtomicIntegerArray consecutiveTimeouts;
+
+  /**
+   * Wraps the given channel. Timeouts are 10 times the 99th percentile of the latency, at least 100 ms and at most the
+   * initial timeout, after 20 samples.
+   *
+   * @param channel the channel
+   * @param initialTimeoutMS the timeout in milliseconds used until enough samples are available and the maximum timeout
+   */
+  public AdaptiveTimeoutCardChannel(CardChannel channel, long initialTimeoutMS) {
+    this(channel, initialTimeoutMS, 100, 0.99, 10, 20);
+  }
+
+  /**
+   * Wraps the given channel.
+   *
+   * @param channel the channel
+   * @param initialTimeoutMS the timeout in milliseconds used until enough samples are available and the maximum timeout
+   * @param minTimeoutMS the minimum timeout in milliseconds
+   * @param percentile the percentile of the observed latency the timeout is based on, between 0 and 1
+   * @param factor the factor applied to the percentile
+   * @param minSamples the number of samples needed before the timeout is adapted
+   */
+  public AdaptiveTimeoutCardChannel(CardChannel channel, long initialTimeoutMS, long minTimeoutMS, double percentile, double factor, int minSamples) {
+    if (minTimeoutMS <= 0 || minTimeoutMS > initialTimeoutMS || percentile <= 0 || percentile > 1 || factor < 1 || minSamples < 1) {
+      throw new IllegalArgumentException("Invalid timeout parameters");
+    }
+
+    this.channel = channel;
+    this.initialTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(initialTimeoutMS);
+    this.minTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(minTimeoutMS);
+    this.percentile = percentile;
+    this.factor = factor;
+    this.minSamples = minSamples;
+    this.histograms = new AtomicReferenceArray<>(256);
+    this.samples = new AtomicLongArray(256);
+    this.timeouts = new AtomicLongArray(256);
+    this.consecutiveTimeouts = new AtomicIntegerArray(256);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    return send(cmd, Deadline.NONE);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    int ins = cmd.getIns() & 0xff;
+    long timeout = getTimeout(ins, TimeUnit.NANOSECONDS);
+    long start = System.nanoTime();
+    Deadline adaptive = Deadline.after(timeout, TimeUnit.NANOSECONDS);
+    Deadline effective = deadline.min(adaptive);
+
+    try {
+      APDUResponse resp = channel.send(cmd, effective);
+      consecutiveTimeouts.set(ins, 0);
+      record(ins, System.nanoTime() - start);
+      return resp;
+    } catch (CardTimeoutException e) {
+      // a timeout caused by the shorter deadline of the caller says nothing about the latency of the command
+      if (effective != adaptive || deadline.isExpired()) {
+        throw e;
+      }
+
+      if (consecutiveTimeouts.incrementAndGet(ins) >= RESET_AFTER_TIMEOUTS) {
+        reset(ins);
+      } else {
+        record(ins, Math.max(timeout, System.nanoTime() - start));
+      }
+
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the timeout currently given to the commands with the given INS.
+   *
+   * @param ins the INS byte
+   * @param unit the unit of the result
+   * @return the timeout
+   */
+  public long getTimeout(int ins, TimeUnit unit) {
+    long timeout = timeouts.get(ins & 0xff);
+    return unit.convert(timeout == 0 ? initialTimeoutNanos : timeout, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Forgets the latency observed for all commands, going back to the initial timeout.
+   */
+  public void reset() {
+    for (int i = 0; i < 256; i++) {
+      reset(i);
+    }
+  }
+
+  private void reset(int ins) {
+    histograms.set(ins, null);
+    samples.set(ins, 0);
+    timeouts.set(ins, 0);
+    consecutiveTimeouts.set(ins, 0);
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    channel.beginTransaction();
+  }
+
+  @Override
+  public void endTransaction() throws IOException {
+    channel.endTransaction();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return channel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return channel.getChannelNumber();
+  }
+
+  private void record(int ins, long nanos) {
+    LatencyHistogram histogram = histograms.get(ins);
+
+    if (histogram == null) {
+      LatencyHistogram created = new LatencyHistogram();
+      histogram = histograms.compareAndSet(ins, null, created) ? created : histograms.get(ins);
+
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+
+    histogram.record(nanos);
+    long count = samples.incrementAndGet(ins);
+
+    // taking a snapshot copies the whole histogram, so once adapted the timeout is only recomputed periodically
+    if (count < minSamples || (count > minSamples && (count % REFRESH_INTERVAL) != 0)) {
+      return;
+    }
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    long timeout = (long) (snapshot.getPercentile(percentile) * factor);
+    timeouts.set(ins, Math.max(minTimeoutNanos, Math.min(initialTimeoutNanos, timeout)));
+  }
+}
@@ -1,6 +1,13 @@
 package im.status.keycard.io;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * A channel to transcieve ISO7816-4 APDUs.
@@ -15,12 +22,178 @@ public interface CardChannel {
    */
   APDUResponse send(APDUCommand cmd) throws IOException;
 
+  /**
+   * Sends the given C-APDU, giving up when the deadline expires. Channels whose transport has a timeout should override
+   * this method and bound the timeout by the time left. The default implementation sends the command with sendAsync and
+   * stops waiting for the response at the deadline, leaving the transport to complete in the background, after which
+   * the channel should be considered unusable.
+   *
+   * @param cmd the command to send
+   * @param deadline the deadline
+   * @return the card response
+   * @throws CardTimeoutException if the deadline expired before the response was received
+   * @throws IOException communication error
+   */
+  default APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    if (!deadline.isFinite()) {
+      return send(cmd);
+    }
+
+    deadline.check();
+    CompletableFuture<APDUResponse> future = sendAsync(cmd);
+
+    try {
+      return future.get(deadline.remaining(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      throw new CardTimeoutException("No response before the deadline");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("send interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Sends the given C-APDU without blocking the caller. The returned future completes with the R-APDU or exceptionally
+   * with the IOException thrown by the transport. The default implementation runs the blocking send method on a shared
+   * pool of daemon threads, channels which can perform non-blocking I/O should override it. Commands sent by a single
+   * thread are transmitted in order only if the implementation guarantees it; to chain dependent commands, send each
+   * command after the previous future has completed.
+   *
+   * On Android this method requires API level 24.
+   *
+   * @param cmd the command to send
+   * @return the future card response
+   */
+  default CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    return sendAsync(cmd, CardExecutors.IO);
+  }
+
+  /**
+   * Sends the given C-APDU by running the blocking send method on the given executor.
+   *
+   * @param cmd the command to send
+   * @param executor the executor running the send operation
+   * @return the future card response
+   */
+  default CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd, Executor executor) {
+    CompletableFuture<APDUResponse> future = new CompletableFuture<>();
+
+    executor.execute(() -> {
+      try {
+        future.complete(send(cmd));
+      } catch (Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Sends the given commands in sequence, stopping at the first response with a status word other than 0x9000. The
+   * returned list has one response for each command sent, so if it is shorter than the list of commands or the last
+   * response is not OK, the batch has been interrupted. Transports which support it run the whole batch in a single
+   * exclusive transaction.
+   *
+   * @param cmds the commands to send
+   * @return the card responses
+   * @throws IOException communication error
+   */
+  default List<APDUResponse> sendBatch(List<APDUCommand> cmds) throws IOException {
+    return sendBatch(cmds, null);
+  }
+
+  /**
+   * Sends the given commands in sequence like sendBatch(List), wrapping each command right before sending it and
+   * unwrapping its response right after receiving it. The stop condition is checked on the unwrapped response. The
+   * default implementation sends the commands one by one between beginTransaction and endTransaction, so a decorator
+   * forwarding these methods keeps the exclusive access given by the transport it wraps.
+   *
+   * @param cmds the commands to send
+   * @param wrapper the wrapper, or null to send the commands as they are
+   * @return the unwrapped card responses
+   * @throws IOException communication error
+   */
+  default List<APDUResponse> sendBatch(List<APDUCommand> cmds, APDUWrapper wrapper) throws IOException {
+    List<APDUResponse> responses = new ArrayList<>(cmds.size());
+    beginTransaction();
+
+    try {
+      for (APDUCommand cmd : cmds) {
+        APDUResponse resp;
+
+        if (wrapper != null) {
+          resp = wrapper.unwrap(send(wrapper.wrap(cmd)));
+        } else {
+          resp = send(cmd);
+        }
+
+        responses.add(resp);
+
+        if (!resp.isOK()) {
+          break;
+        }
+      }
+    } finally {
+      endTransaction();
+    }
+
+    return responses;
+  }
+
+  /**
+   * Begins an exclusive transaction on the card. Until the matching endTransaction, no other application, nor any other
+   * thread sending through the same transport, can interleave its commands with the ones sent by the calling thread,
+   * and the transport does not have to acquire the card again for each command. Transactions can be nested, only the
+   * outermost one acquiring and releasing the card. The default does nothing, for transports which have exclusive
+   * access to the card anyway. Prefer CardTransaction, which ends the transaction with try-with-resources.
+   *
+   * @throws IOException communication error
+   */
+  default void beginTransaction() throws IOException {
+  }
+
+  /**
+   * Ends the exclusive transaction begun by the last call to beginTransaction.
+   *
+   * @throws IOException communication error
+   */
+  default void endTransaction() throws IOException {
+  }
+
   /**
    * True if connected, false otherwise
    * @return true if connected, false otherwise
    */
   boolean isConnected();
 
+  /**
+   * Returns the maximum length of a serialized APDU which can be sent on this channel. Channels supporting extended
+   * length APDUs should return a value larger than APDUCommand.MAX_SHORT_LENGTH. The default only allows short APDUs.
+   *
+   * @return the maximum transceive length
+   */
+  default int getMaxTransceiveLength() {
+    return APDUCommand.MAX_SHORT_LENGTH;
+  }
+
+  /**
+   * Returns the number of the logical channel the commands sent on this channel end up on. Decorators must forward it
+   * from the wrapped channel, since protocols which MAC the CLA byte, like the Keycard secure channel, need it to encode
+   * the CLA as the card receives it. The default is 0, the basic channel.
+   *
+   * @return the logical channel number
+   */
+  default int getChannelNumber() {
+    return 0;
+  }
+
   /**
    * Returns the iteration count for deriving the pairing key from the pairing password. The default is 50000 and is
    * should only be changed for devices where the PBKDF2 is calculated on-board and the resource do not permit a
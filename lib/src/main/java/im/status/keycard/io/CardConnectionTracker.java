@@ -0,0 +1,237 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the connection of a card and dispatches the CardListener callbacks without polling. The transport reports a
+ * new card with onCardConnected, which calls onConnected on the calling thread with a channel watching its own
+ * failures: when a send fails with an IOException and the underlying channel is no longer connected, the card is
+ * considered gone and onDisconnected is called. Since a card removed while the application is not talking to it would
+ * go unnoticed, an optional watchdog can check the connection at a slow interval while a card is connected.
+ *
+ * The tracker has no thread of its own. A card connected while another one is still tracked first causes
+ * onDisconnected to be called for the previous card.
+ */
+public class CardConnectionTracker {
+  /**
+   * The connection state.
+   */
+  public enum State {
+    DISCONNECTED,
+    CONNECTED
+  }
+
+  private final long watchdogMS;
+
+  private CardListener listener;
+  private State state;
+  private CardChannel channel;
+  private long generation;
+  private ScheduledFuture<?> watchdog;
+
+  /**
+   * Creates a tracker without watchdog. Disconnection is only detected from failed sends and new connections.
+   */
+  public CardConnectionTracker() {
+    this(0);
+  }
+
+  /**
+   * Creates a tracker checking the connection at the given interval while a card is connected.
+   *
+   * @param watchdogMS the interval of the watchdog in milliseconds, 0 to disable it
+   */
+  public CardConnectionTracker(long watchdogMS) {
+    if (watchdogMS < 0) {
+      throw new IllegalArgumentException("The watchdog interval cannot be negative");
+    }
+
+    this.watchdogMS = watchdogMS;
+    this.state = State.DISCONNECTED;
+  }
+
+  /**
+   * Sets the card listener.
+   *
+   * @param listener the new listener
+   */
+  public synchronized void setCardListener(CardListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Returns the current state.
+   *
+   * @return the connection state
+   */
+  public synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * True if a card is connected, false otherwise.
+   *
+   * @return true if a card is connected, false otherwise
+   */
+  public boolean isConnected() {
+    return getState() == State.CONNECTED;
+  }
+
+  /**
+   * Reports that a card has been connected and calls onConnected on the calling thread with a channel reporting its
+   * failures to this tracker. If a card was already connected, onDisconnected is called first.
+   *
+   * @param channel the channel to the new card
+   */
+  public void onCardConnected(CardChannel channel) {
+    boolean hadCard;
+    long gen;
+    CardListener l;
+
+    synchronized (this) {
+      hadCard = state == State.CONNECTED;
+      cancelWatchdog();
+      gen = ++generation;
+      this.channel = channel;
+      this.state = State.CONNECTED;
+      l = listener;
+
+      if (watchdogMS > 0) {
+        watchdog = CardExecutors.TIMER.scheduleWithFixedDelay(() -> checkConnection(gen), watchdogMS, watchdogMS, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    if (l != null) {
+      if (hadCard) {
+        l.onDisconnected();
+      }
+
+      l.onConnected(new TrackedCardChannel(channel, gen));
+    }
+  }
+
+  /**
+   * Reports that the card has been disconnected. Does nothing if no card is connected.
+   */
+  public void onCardDisconnected() {
+    disconnect(-1);
+  }
+
+  /**
+   * Checks whether the connected card is still there, reporting the disconnection if it is not. Transports can call
+   * this when they have a hint that the card is gone.
+   */
+  public void checkConnection() {
+    long gen;
+
+    synchronized (this) {
+      gen = generation;
+    }
+
+    checkConnection(gen);
+  }
+
+  private void checkConnection(long gen) {
+    CardChannel c;
+
+    synchronized (this) {
+      if (state != State.CONNECTED || gen != generation) {
+        return;
+      }
+
+      c = channel;
+    }
+
+    if (!c.isConnected()) {
+      disconnect(gen);
+    }
+  }
+
+  private void disconnect(long gen) {
+    CardListener l;
+
+    synchronized (this) {
+      if (state != State.CONNECTED || (gen != -1 && gen != generation)) {
+        return;
+      }
+
+      cancelWatchdog();
+      generation++;
+      channel = null;
+      state = State.DISCONNECTED;
+      l = listener;
+    }
+
+    if (l != null) {
+      l.onDisconnected();
+    }
+  }
+
+  private void cancelWatchdog() {
+    if (watchdog != null) {
+      watchdog.cancel(false);
+      watchdog = null;
+    }
+  }
+
+  /**
+   * Reports failed sends to the tracker. A failure concerning a card which is no longer tracked is ignored, so a
+   * channel kept by the application after its card was replaced cannot disconnect the new one.
+   */
+  private class TrackedCardChannel implements CardChannel {
+    private final CardChannel channel;
+    private final long gen;
+
+    TrackedCardChannel(CardChannel channel, long gen) {
+      this.channel = channel;
+      this.gen = gen;
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      return send(cmd, Deadline.NONE);
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+      try {
+        return channel.send(cmd, deadline);
+      } catch (IOException e) {
+        checkConnection(gen);
+        throw e;
+      }
+    }
+
+    @Override
+    public void beginTransaction() throws IOException {
+      channel.beginTransaction();
+    }
+
+    @Override
+    public void endTransaction() throws IOException {
+      channel.endTransaction();
+    }
+
+    @Override
+    public boolean isConnected() {
+      return channel.isConnected();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+      return channel.getMaxTransceiveLength();
+    }
+
+    @Override
+    public int pairingPasswordPBKDF2IterationCount() {
+      return channel.pairingPasswordPBKDF2IterationCount();
+    }
+
+    @Override
+    public int getChannelNumber() {
+      return channel.getChannelNumber();
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package im.status.keycard.io;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared executors backing the asynchronous channel API. The threads are daemon threads, so they never keep the JVM
+ * alive. They are only created the first time an asynchronous method is used. Transports outside this package can
+ * use them through execute and schedule instead of creating their own threads.
+ */
+public final class CardExecutors {
+  /**
+   * Runs blocking send operations for channels without a native asynchronous implementation.
+   */
+  static final ExecutorService IO = Executors.newCachedThreadPool(new DaemonThreadFactory("keycard-io"));
+
+  /**
+   * Fires timeouts of asynchronous exchanges.
+   */
+  static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("keycard-timer"));
+
+  private CardExecutors() {}
+
+  /**
+   * Runs the given blocking task on the shared pool of I/O threads.
+   *
+   * @param task the task
+   */
+  public static void execute(Runnable task) {
+    IO.execute(task);
+  }
+
+  /**
+   * Runs the given task on the shared timer once the given delay has elapsed. The timer has a single thread, so the
+   * task must return quickly, handing any blocking work to execute.
+   *
+   * @param task the task
+   * @param delay the delay
+   * @param unit the unit of the delay
+   * @return the future of the task, which can be cancelled
+   */
+  public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+    return TIMER.schedule(task, delay, unit);
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger count = new AtomicInteger();
+
+    DaemonThreadFactory(String prefix) {
+      this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+}
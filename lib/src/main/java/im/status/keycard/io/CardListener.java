@@ -2,6 +2,12 @@ package im.status.keycard.io;
 
 /**
  * Listener for card connection events.
+ *
+ * The thread calling the callbacks depends on the manager reporting the events, see its documentation. Managers
+ * tracking the connection from events, like NFCCardManager by default or a CardConnectionTracker, call onConnected on
+ * the thread of the transport, and may call onDisconnected from another thread, for example when a command fails or a
+ * watchdog notices that the card is gone, while onConnected is still running. Implementations doing their work in
+ * onConnected must therefore be thread-safe and expect the channel to fail once onDisconnected has been called.
  */
 public interface CardListener {
   /**
@@ -0,0 +1,27 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a command did not complete before its deadline.
+ */
+public class CardTimeoutException extends IOException {
+  /**
+   * Creates an exception with a message.
+   *
+   * @param message a descriptive message of the error
+   */
+  public CardTimeoutException(String message) {
+    super(message);
+  }
+
+  /**
+   * Creates an exception with a message and the transport error caused by the timeout.
+   *
+   * @param message a descriptive message of the error
+   * @param cause the transport error
+   */
+  public CardTimeoutException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
@@ -0,0 +1,52 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * An exclusive transaction on a card, meant to be used with try-with-resources so that a sequence of commands runs
+ * under a single acquisition of the card:
+ *
+ * <pre>
+ * try (CardTransaction tx = CardTransaction.begin(channel)) {
+ *   cmdSet.deriveKey(path).checkOK();
+ *   cmdSet.sign(hash).checkOK();
+ * }
+ * </pre>
+ *
+ * See CardChannel.beginTransaction for the guarantees given by the transaction.
+ */
+public class CardTransaction implements AutoCloseable {
+  private final CardChannel channel;
+  private boolean closed;
+
+  private CardTransaction(CardChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Begins a transaction on the given channel.
+   *
+   * @param channel the channel
+   * @return the transaction
+   * @throws IOException communication error
+   */
+  public static CardTransaction begin(CardChannel channel) throws IOException {
+    channel.beginTransaction();
+    return new CardTransaction(channel);
+  }
+
+  /**
+   * Ends the transaction. Calling it again has no effect.
+   *
+   * @throws IOException communication error
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    channel.endTransaction();
+  }
+}
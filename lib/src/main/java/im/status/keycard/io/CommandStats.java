@@ -0,0 +1,159 @@
+package im.status.keycard.io;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable statistics about the commands sent with a given CLA/INS, or with a given operation name, as collected by a
+ * MetricsCardChannel.
+ */
+public class CommandStats {
+  private final int cla;
+  private final int ins;
+  private final String name;
+  private final long calls;
+  private final long errors;
+  private final long bytesOut;
+  private final long bytesIn;
+  private final Map<Integer, Long> statusWords;
+  private final LatencyHistogram.Snapshot latency;
+
+  CommandStats(int cla, int ins, String name, long calls, long errors, long bytesOut, long bytesIn, Map<Integer, Long> statusWords, LatencyHistogram.Snapshot latency) {
+    this.cla = cla;
+    this.ins = ins;
+    this.name = name;
+    this.calls = calls;
+    this.errors = errors;
+    this.bytesOut = bytesOut;
+    this.bytesIn = bytesIn;
+    this.statusWords = Collections.unmodifiableMap(statusWords);
+    this.latency = latency;
+  }
+
+  /**
+   * Returns statistics combining this and the given statistics. CLA and INS are kept only if they are the same for both.
+   *
+   * @param other the other statistics
+   * @return the combined statistics
+   */
+  CommandStats merge(CommandStats other) {
+    Map<Integer, Long> sws = new HashMap<>(statusWords);
+
+    for (Map.Entry<Integer, Long> e : other.statusWords.entrySet()) {
+      Long count = sws.get(e.getKey());
+      sws.put(e.getKey(), count == null ? e.getValue() : count + e.getValue());
+    }
+
+    return new CommandStats(cla == other.cla ? cla : -1, ins == other.ins ? ins : -1, name, calls + other.calls, errors + other.errors, bytesOut + other.bytesOut, bytesIn + other.bytesIn, sws, latency.merge(other.latency));
+  }
+
+  /**
+   * Returns the CLA of the commands, or -1 if these are the statistics of an operation sent with different CLAs.
+   *
+   * @return the CLA
+   */
+  public int getCla() {
+    return cla;
+  }
+
+  /**
+   * Returns the INS of the commands, or -1 if these are the statistics of an operation sent with different INS.
+   *
+   * @return the INS
+   */
+  public int getIns() {
+    return ins;
+  }
+
+  /**
+   * Returns the operation name.
+   *
+   * @return the operation name
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the number of commands sent.
+   *
+   * @return the number of commands sent
+   */
+  public long getCalls() {
+    return calls;
+  }
+
+  /**
+   * Returns the number of commands which failed with a communication error.
+   *
+   * @return the number of communication errors
+   */
+  public long getErrors() {
+    return errors;
+  }
+
+  /**
+   * Returns the total length of the command APDUs sent.
+   *
+   * @return the number of bytes sent
+   */
+  public long getBytesOut() {
+    return bytesOut;
+  }
+
+  /**
+   * Returns the total length of the response APDUs received, including the SW.
+   *
+   * @return the number of bytes received
+   */
+  public long getBytesIn() {
+    return bytesIn;
+  }
+
+  /**
+   * Returns how many times each status word other than 0x9000 has been received. In the unlikely case a command
+   * received more than 32 different status words, the ones which could not be tracked are counted under 0.
+   *
+   * @return the count of each error status word
+   */
+  public Map<Integer, Long> getStatusWords() {
+    return statusWords;
+  }
+
+  /**
+   * Returns the latency histogram, including failed commands.
+   *
+   * @return the latency histogram
+   */
+  public LatencyHistogram.Snapshot getLatency() {
+    return latency;
+  }
+
+  /**
+   * Returns the median latency in nanoseconds.
+   *
+   * @return the median latency
+   */
+  public long getP50() {
+    return latency.getPercentile(0.5);
+  }
+
+  /**
+   * Returns the 99th percentile of the latency in nanoseconds.
+   *
+   * @return the 99th percentile of the latency
+   */
+  public long getP99() {
+    return latency.getPercentile(0.99);
+  }
+
+  /**
+   * Returns the 99.9th percentile of the latency in nanoseconds.
+   *
+   * @return the 99.9th percentile of the latency
+   */
+  public long getP999() {
+    return latency.getPercentile(0.999);
+  }
+}
@@ -0,0 +1,115 @@
+package im.status.keycard.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an operation must complete, measured with System.nanoTime. A deadline is passed along with
+ * the commands of an operation, so that each transport can bound its own waits by the time left instead of by a fixed
+ * timeout. Deadlines are immutable.
+ */
+public final class Deadline {
+  /**
+   * The deadline which never expires.
+   */
+  public static final Deadline NONE = new Deadline(Long.MAX_VALUE, false);
+
+  private final long nanoTime;
+  private final boolean finite;
+
+  private Deadline(long nanoTime, boolean finite) {
+    this.nanoTime = nanoTime;
+    this.finite = finite;
+  }
+
+  /**
+   * Returns a deadline expiring after the given time from now.
+   *
+   * @param timeout the time left
+   * @param unit the unit of the timeout
+   * @return the deadline
+   */
+  public static Deadline after(long timeout, TimeUnit unit) {
+    return new Deadline(System.nanoTime() + unit.toNanos(timeout), true);
+  }
+
+  /**
+   * Returns whether this deadline can expire.
+   *
+   * @return false for NONE, true otherwise
+   */
+  public boolean isFinite() {
+    return finite;
+  }
+
+  /**
+   * Returns whether the deadline has passed.
+   *
+   * @return true if expired
+   */
+  public boolean isExpired() {
+    return finite && (System.nanoTime() - nanoTime) >= 0;
+  }
+
+  /**
+   * Returns the time left before the deadline, or 0 if it has expired. NONE returns Long.MAX_VALUE.
+   *
+   * @param unit the unit of the result
+   * @return the time left
+   */
+  public long remaining(TimeUnit unit) {
+    if (!finite) {
+      return Long.MAX_VALUE;
+    }
+
+    long left = nanoTime - System.nanoTime();
+    return left <= 0 ? 0 : unit.convert(left, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Returns the time left in milliseconds, rounded up and capped to the given maximum. Useful to turn the deadline into
+   * a transport timeout.
+   *
+   * @param maxMillis the maximum value returned
+   * @return the time left in milliseconds, between 0 and maxMillis
+   */
+  public int remainingMillis(int maxMillis) {
+    if (!finite) {
+      return maxMillis;
+    }
+
+    long left = nanoTime - System.nanoTime();
+
+    if (left <= 0) {
+      return 0;
+    }
+
+    return (int) Math.min(maxMillis, (left + 999999) / 1000000);
+  }
+
+  /**
+   * Returns the earliest of this deadline and the given one.
+   *
+   * @param other the other deadline
+   * @return the earliest deadline
+   */
+  public Deadline min(Deadline other) {
+    if (!other.finite) {
+      return this;
+    } else if (!finite) {
+      return other;
+    }
+
+    return (other.nanoTime - nanoTime) < 0 ? other : this;
+  }
+
+  /**
+   * Throws a CardTimeoutException if the deadline has passed.
+   *
+   * @throws CardTimeoutException if expired
+   */
+  public void check() throws CardTimeoutException {
+    if (isExpired()) {
+      throw new CardTimeoutException("Deadline expired");
+    }
+  }
+}
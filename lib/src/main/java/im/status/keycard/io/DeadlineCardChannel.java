@@ -0,0 +1,135 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A CardChannel decorator sending every command with the deadline currently set on it. The command sets use it to
+ * propagate the deadline of an operation to the channel, including for the commands they send on their own, like
+ * those opening the secure channel.
+ *
+ * A deadline passed explicitly to send is combined with the current one, the earliest applying.
+ */
+public class DeadlineCardChannel implements CardChannel {
+  private final CardChannel channel;
+  private volatile Deadline deadline;
+
+  /**
+   * Wraps the given channel, with no deadline.
+   *
+   * @param channel the channel
+   */
+  public DeadlineCardChannel(CardChannel channel) {
+    this.channel = channel;
+    this.deadline = Deadline.NONE;
+  }
+
+  /**
+   * Returns the wrapped channel.
+   *
+   * @return the wrapped channel
+   */
+  public CardChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * Sets the deadline applying to the commands sent from now on.
+   *
+   * @param deadline the deadline, Deadline.NONE to remove it
+   */
+  public void setDeadline(Deadline deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * Returns the current deadline.
+   *
+   * @return the deadline
+   */
+  public Deadline getDeadline() {
+    return deadline;
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    return channel.send(cmd, deadline);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    return channel.send(cmd, this.deadline.min(deadline));
+  }
+
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    if (!deadline.isFinite()) {
+      return channel.sendAsync(cmd);
+    }
+
+    return CardChannel.super.sendAsync(cmd);
+  }
+
+  /**
+   * Forwards the batch to the wrapped channel, so that it keeps running in a single transaction where the transport
+   * supports it. With a deadline, the deadline is checked before each command of the batch, which is interrupted with
+   * a CardTimeoutException once it has expired. The exchange in progress at that time is not cut short.
+   *
+   * @param cmds the commands to send
+   * @param wrapper the wrapper, or null to send the commands as they are
+   * @return the unwrapped card responses
+   * @throws IOException communication error
+   */
+  @Override
+  public List<APDUResponse> sendBatch(List<APDUCommand> cmds, APDUWrapper wrapper) throws IOException {
+    Deadline deadline = this.deadline;
+
+    if (!deadline.isFinite()) {
+      return channel.sendBatch(cmds, wrapper);
+    }
+
+    return channel.sendBatch(cmds, new APDUWrapper() {
+      @Override
+      public APDUCommand wrap(APDUCommand cmd) throws IOException {
+        deadline.check();
+        return wrapper != null ? wrapper.wrap(cmd) : cmd;
+      }
+
+      @Override
+      public APDUResponse unwrap(APDUResponse resp) throws IOException {
+        return wrapper != null ? wrapper.unwrap(resp) : resp;
+      }
+    });
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    channel.beginTransaction();
+  }
+
+  @Override
+  public void endTransaction() throws IOException {
+    channel.endTransaction();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return channel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return channel.getChannelNumber();
+  }
+}
@@ -0,0 +1,142 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * A CardChannel decorator handling the ISO 7816-4 response chaining status words, so that callers always get the
+ * complete response. On 61xx, GET RESPONSE commands are sent asking for exactly the xx bytes announced by the card,
+ * until a final status word is received. On 6Cxx, the command is sent again with Le set to xx. These status words are
+ * mostly returned by T=0 readers and by PC/SC stacks which do not chain the responses themselves.
+ *
+ * The data of the chained responses is accumulated in a single buffer, sized from the lengths announced by the card,
+ * and the returned response is backed by that buffer.
+ */
+public class GetResponseCardChannel implements CardChannel {
+  static final int SW1_BYTES_AVAILABLE = 0x61;
+  static final int SW1_WRONG_LE = 0x6C;
+  static final int INS_GET_RESPONSE = 0xC0;
+
+  // a 64k extended response retrieved 256 bytes at a time, plus the command resent after 6Cxx
+  private static final int MAX_EXCHANGES = 258;
+
+  private final CardChannel channel;
+
+  /**
+   * Wraps the given channel.
+   *
+   * @param channel the channel
+   */
+  public GetResponseCardChannel(CardChannel channel) {
+    this.channel = channel;
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    return send(cmd, Deadline.NONE);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    APDUResponse resp = sendWithLe(cmd, deadline);
+
+    if (resp.getSw1() != SW1_BYTES_AVAILABLE) {
+      return resp;
+    }
+
+    byte[] buf = new byte[resp.getDataLength() + expectedLength(resp.getSw2()) + 2];
+    int len = append(buf, 0, resp);
+    int exchanges = 1;
+
+    while (resp.getSw1() == SW1_BYTES_AVAILABLE) {
+      if (++exchanges > MAX_EXCHANGES) {
+        throw new IOException("Response chaining did not terminate");
+      }
+
+      APDUCommand getResponse = new APDUCommand(getResponseCla(cmd.getCla()), INS_GET_RESPONSE, 0, 0, new byte[0], expectedLength(resp.getSw2()));
+      resp = sendWithLe(getResponse, deadline);
+
+      int needed = len + resp.getDataLength() + 2;
+
+      if (resp.getSw1() == SW1_BYTES_AVAILABLE) {
+        needed += expectedLength(resp.getSw2());
+      }
+
+      if (needed > buf.length) {
+        byte[] grown = new byte[Math.max(needed, buf.length * 2)];
+        System.arraycopy(buf, 0, grown, 0, len);
+        buf = grown;
+      }
+
+      len = append(buf, len, resp);
+    }
+
+    buf[len++] = (byte) resp.getSw1();
+    buf[len++] = (byte) resp.getSw2();
+
+    return new APDUResponse(buf, 0, len);
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    channel.beginTransaction();
+  }
+
+  @Override
+  public void endTransaction() throws IOException {
+    channel.endTransaction();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return channel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return channel.getChannelNumber();
+  }
+
+  /**
+   * Sends the command, sending it again with the Le requested by the card on 6Cxx.
+   */
+  private APDUResponse sendWithLe(APDUCommand cmd, Deadline deadline) throws IOException {
+    APDUResponse resp = channel.send(cmd, deadline);
+
+    if (resp.getSw1() == SW1_WRONG_LE) {
+      APDUCommand resent = new APDUCommand(cmd.getCla(), cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData(), expectedLength(resp.getSw2()));
+      resp = channel.send(resent, deadline);
+    }
+
+    return resp;
+  }
+
+  private static int append(byte[] buf, int off, APDUResponse resp) {
+    int len = resp.getDataLength();
+    System.arraycopy(resp.getBuffer(), resp.getDataOffset(), buf, off, len);
+    return off + len;
+  }
+
+  /**
+   * Returns the number of bytes announced by the SW2 of a 61xx or 6Cxx status word, 00 meaning 256.
+   */
+  private static int expectedLength(int sw2) {
+    return sw2 == 0 ? APDUCommand.MAX_SHORT_NE : sw2;
+  }
+
+  /**
+   * Returns the CLA of a GET RESPONSE command on the same logical channel as the given CLA.
+   */
+  static int getResponseCla(int cla) {
+    return LogicalCardChannel.setChannelNumber(0x00, LogicalCardChannel.getChannelNumber(cla));
+  }
+}
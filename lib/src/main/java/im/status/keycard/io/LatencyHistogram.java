@@ -0,0 +1,194 @@
+package im.status.keycard.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with fixed, logarithmically spaced buckets. Each power of two is split in 8 linear
+ * sub-buckets, so any recorded value is reported with a relative error below 12.5%, from nanoseconds up to the full
+ * long range, with a constant memory footprint. Recording a value is a few atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = 64 * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong max;
+
+  /**
+   * Creates an empty histogram.
+   */
+  public LatencyHistogram() {
+    this.counts = new AtomicLongArray(BUCKET_COUNT);
+    this.count = new AtomicLong();
+    this.sum = new AtomicLong();
+    this.max = new AtomicLong();
+  }
+
+  /**
+   * Records a value. Negative values are recorded as 0.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    counts.incrementAndGet(bucketIndex(nanos));
+    count.incrementAndGet();
+    sum.addAndGet(nanos);
+
+    long current;
+
+    while ((current = max.get()) < nanos) {
+      if (max.compareAndSet(current, nanos)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Clears all recorded values. Values recorded concurrently with the reset may be partially kept.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+
+    count.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /**
+   * Returns a consistent copy of the histogram, which can be queried for percentiles.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKET_COUNT];
+    long total = 0;
+
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      copy[i] = counts.get(i);
+      total += copy[i];
+    }
+
+    return new Snapshot(copy, total, sum.get(), max.get());
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    int exp = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) ((value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+
+    return (exp * SUB_BUCKETS) + sub;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int exp = index / SUB_BUCKETS;
+    int sub = index % SUB_BUCKETS;
+
+    long bound = ((long) (SUB_BUCKETS + sub + 1) << (exp - SUB_BUCKET_BITS)) - 1;
+
+    // the last bucket extends past Long.MAX_VALUE
+    return bound < 0 ? Long.MAX_VALUE : bound;
+  }
+
+  /**
+   * An immutable copy of a histogram.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the mean of the recorded values in nanoseconds, or 0 if the histogram is empty.
+     *
+     * @return the mean
+     */
+    public long getMean() {
+      return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Returns the largest recorded value in nanoseconds.
+     *
+     * @return the largest recorded value
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Returns the value in nanoseconds below which the given fraction of the recorded values fall. The result is the
+     * upper bound of the bucket containing the percentile, capped at the largest recorded value.
+     *
+     * @param fraction the fraction, between 0 and 1 (e.g. 0.99 for the 99th percentile)
+     * @return the percentile, or 0 if the histogram is empty
+     */
+    public long getPercentile(double fraction) {
+      if (count == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(fraction * count));
+      long seen = 0;
+
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(i), max);
+        }
+      }
+
+      return max;
+    }
+
+    /**
+     * Returns a snapshot combining the values of this and the given snapshot.
+     *
+     * @param other the other snapshot
+     * @return the combined snapshot
+     */
+    public Snapshot merge(Snapshot other) {
+      long[] merged = new long[counts.length];
+
+      for (int i = 0; i < merged.length; i++) {
+        merged[i] = counts[i] + other.counts[i];
+      }
+
+      return new Snapshot(merged, count + other.count, sum + other.sum, Math.max(max, other.max));
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * Frames a command for the Ledger transport and writes the frames with flow control. With a window of 1, each frame is
+ * written with response and the next one only after the previous write has been acknowledged. With a larger window,
+ * frames are written without response and up to window frames can be waiting for their write completion at any time.
+ *
+ * The writer holds no thread and is driven by the caller, which must call onWriteComplete for each accepted write. It is
+ * not thread-safe: LedgerExchange serializes the calls.
+ */
+public class LedgerChunkWriter {
+  /**
+   * The transport used to write the frames.
+   */
+  public interface Transport {
+    /**
+     * Starts writing the given frame. The content of the chunk must be consumed before returning, since the buffer is
+     * reused for the next frame. If the write is accepted, the transport must later report its completion.
+     *
+     * @param chunk the frame to write
+     * @param withResponse whether the peer must acknowledge the write
+     * @return true if the write was accepted, false if the transport is busy and the write must be retried later
+     * @throws IOException if the write failed
+     */
+    boolean write(byte[] chunk, boolean withResponse) throws IOException;
+  }
+
+  private final APDUCommand cmd;
+  private final byte[] chunk;
+  private final boolean channelInfo;
+  private final int window;
+  private final Transport transport;
+  private final int length;
+
+  private int offset;
+  private int sequenceIdx;
+  private int inFlight;
+  private boolean framed;
+
+  /**
+   * Creates a writer. Nothing is written until writeFrames is called.
+   *
+   * @param cmd the command to write
+   * @param chunk the chunk buffer, its length is the segment size
+   * @param channelInfo whether the frames carry channel information
+   * @param window the maximum number of writes waiting for completion, 1 to write each frame with response
+   * @param transport the transport
+   */
+  public LedgerChunkWriter(APDUCommand cmd, byte[] chunk, boolean channelInfo, int window, Transport transport) {
+    if (window < 1) {
+      throw new IllegalArgumentException("The window must be at least 1");
+    }
+
+    this.cmd = cmd;
+    this.chunk = chunk;
+    this.channelInfo = channelInfo;
+    this.window = window;
+    this.transport = transport;
+    this.length = cmd.getSerializedLength();
+  }
+
+  /**
+   * Writes frames until the window is full, the transport is busy or the whole command has been written.
+   *
+   * @return true if all frames have been written and acknowledged
+   * @throws IOException the write failed, or the transport is busy while no write is pending, in which case nothing
+   * would trigger a retry
+   */
+  public boolean writeFrames() throws IOException {
+    while (inFlight < window && (framed || offset < length)) {
+      if (!framed) {
+        offset = LedgerUtil.writeCommandFrame(cmd, chunk, offset, sequenceIdx++, channelInfo);
+        framed = true;
+      }
+
+      if (!transport.write(chunk, window == 1)) {
+        if (inFlight == 0) {
+          throw new IOException("write operation failed");
+        }
+
+        break;
+      }
+
+      framed = false;
+      inFlight++;
+    }
+
+    return isComplete();
+  }
+
+  /**
+   * Called when a write has completed. Frees a slot in the window and writes the next frames, including a frame which
+   * had been refused because the transport was busy. Completions received while no write is pending are ignored.
+   *
+   * @return true if all frames have been written and acknowledged
+   * @throws IOException the write of the next frame failed
+   */
+  public boolean onWriteComplete() throws IOException {
+    if (inFlight > 0) {
+      inFlight--;
+    }
+
+    return writeFrames();
+  }
+
+  /**
+   * Returns whether all frames have been written and acknowledged.
+   *
+   * @return true if the command has been written completely
+   */
+  public boolean isComplete() {
+    return offset == length && !framed && inFlight == 0;
+  }
+}
@@ -0,0 +1,185 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single non-blocking APDU exchange over the Ledger transport. The exchange is driven by the transport callbacks: the
+ * frames are written by a LedgerChunkWriter as previous writes are acknowledged with onWriteComplete, and incoming
+ * frames are fed with onChunkReceived until the response is complete. No thread waits for the device in the meantime.
+ *
+ * If no progress is made within the given timeout, the exchange fails with an IOException.
+ *
+ * The result is delivered to a Callback, which does not require CompletableFuture, so the exchange can be used on
+ * Android before API level 24. The start method returning a future is a convenience for the other platforms.
+ */
+public class LedgerExchange {
+  /**
+   * Receives the result of an exchange.
+   */
+  public interface Callback {
+    /**
+     * Called once, when the exchange completes or fails, on the thread delivering the last transport event or on the
+     * timer thread.
+     *
+     * @param response the response, or null if the exchange failed
+     * @param error the cause of the failure, or null if the exchange succeeded
+     */
+    void onComplete(APDUResponse response, IOException error);
+  }
+
+  private final long timeout;
+  private final LedgerChunkWriter writer;
+  private final LedgerFrameDecoder decoder;
+
+  private Callback callback;
+  private boolean done;
+  private ScheduledFuture<?> timer;
+
+  /**
+   * Creates an exchange writing each frame with response. Nothing is sent until start is called.
+   *
+   * @param cmd the command to send
+   * @param chunk the chunk buffer, its length is the segment size
+   * @param channelInfo whether the frames carry channel information
+   * @param timeout the maximum time in milliseconds between two steps of the exchange
+   * @param transport the transport
+   */
+  public LedgerExchange(APDUCommand cmd, byte[] chunk, boolean channelInfo, long timeout, LedgerChunkWriter.Transport transport) {
+    this(cmd, chunk, channelInfo, timeout, 1, transport);
+  }
+
+  /**
+   * Creates an exchange. With a window larger than 1, frames are written without response and several of them can be
+   * pending at the same time, see LedgerChunkWriter. Nothing is sent until start is called.
+   *
+   * @param cmd the command to send
+   * @param chunk the chunk buffer, its length is the segment size
+   * @param channelInfo whether the frames carry channel information
+   * @param timeout the maximum time in milliseconds between two steps of the exchange
+   * @param window the maximum number of writes waiting for completion
+   * @param transport the transport
+   */
+  public LedgerExchange(APDUCommand cmd, byte[] chunk, boolean channelInfo, long timeout, int window, LedgerChunkWriter.Transport transport) {
+    this.timeout = timeout;
+    this.writer = new LedgerChunkWriter(cmd, chunk, channelInfo, window, transport);
+    this.decoder = new LedgerFrameDecoder(channelInfo);
+  }
+
+  /**
+   * Writes the first frames and returns the future response. On Android this method requires API level 24, use
+   * start(Callback) otherwise.
+   *
+   * @return the future response
+   */
+  public CompletableFuture<APDUResponse> start() {
+    CompletableFuture<APDUResponse> future = new CompletableFuture<>();
+
+    start((response, error) -> {
+      if (error != null) {
+        future.completeExceptionally(error);
+      } else {
+        future.complete(response);
+      }
+    });
+
+    return future;
+  }
+
+  /**
+   * Writes the first frames. The callback is called once the response is complete or the exchange has failed.
+   *
+   * @param callback the callback
+   */
+  public synchronized void start(Callback callback) {
+    this.callback = callback;
+    touch();
+
+    try {
+      writer.writeFrames();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Called by the transport when a write has completed.
+   */
+  public synchronized void onWriteComplete() {
+    if (done) {
+      return;
+    }
+
+    touch();
+
+    try {
+      writer.onWriteComplete();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Called by the transport when a write has failed.
+   *
+   * @param e the cause
+   */
+  public synchronized void onWriteFailed(IOException e) {
+    fail(e);
+  }
+
+  /**
+   * Called by the transport when a frame has been received.
+   *
+   * @param data the frame
+   */
+  public synchronized void onChunkReceived(byte[] data) {
+    if (done) {
+      return;
+    }
+
+    try {
+      if (decoder.decode(data, 0, data.length)) {
+        complete(decoder.getResponse(), null);
+      } else {
+        touch();
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Fails the exchange, unless it is already completed.
+   *
+   * @param e the cause
+   */
+  public synchronized void fail(Throwable e) {
+    if (!done) {
+      complete(null, e instanceof IOException ? (IOException) e : new IOException(e));
+    }
+  }
+
+  private void complete(APDUResponse response, IOException error) {
+    done = true;
+    cancelTimer();
+
+    if (callback != null) {
+      callback.onComplete(response, error);
+    }
+  }
+
+  private void touch() {
+    cancelTimer();
+    timer = CardExecutors.TIMER.schedule(() -> fail(new IOException("Ledger exchange timeout")), timeout, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelTimer() {
+    if (timer != null) {
+      timer.cancel(false);
+      timer = null;
+    }
+  }
+}
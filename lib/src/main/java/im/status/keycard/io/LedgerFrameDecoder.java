@@ -0,0 +1,109 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * Reassembles a response APDU from the frames of the Ledger transport as they arrive. The header of each frame is
+ * checked only once and its payload is copied directly in a buffer allocated from the length found in the first frame,
+ * so the cost of decoding a response is linear in the number of frames.
+ */
+public class LedgerFrameDecoder {
+  private final boolean channelInfo;
+
+  private byte[] response;
+  private int received;
+  private int sequenceIdx;
+
+  /**
+   * Creates a decoder for a single response.
+   *
+   * @param channelInfo whether the frames carry channel information
+   */
+  public LedgerFrameDecoder(boolean channelInfo) {
+    this.channelInfo = channelInfo;
+  }
+
+  /**
+   * Decodes the next frame. Bytes following the end of the response, such as the padding of the last frame, are
+   * ignored.
+   *
+   * @param frame the buffer holding the frame
+   * @param off the offset of the frame
+   * @param len the length of the frame
+   * @return true if the response is complete, false if more frames are needed
+   * @throws IOException the frame is invalid or out of sequence
+   */
+  public boolean decode(byte[] frame, int off, int len) throws IOException {
+    if (isComplete()) {
+      return true;
+    }
+
+    int end = off + len;
+    int headerSize = (channelInfo ? 5 : 3) + ((response == null) ? 2 : 0);
+
+    if (len < headerSize) {
+      throw new IOException("Invalid frame length");
+    }
+
+    off = checkHeader(frame, off);
+
+    if (response == null) {
+      int responseLength = ((frame[off] & 0xff) << 8) | (frame[off + 1] & 0xff);
+      off += 2;
+
+      if (responseLength < 2) {
+        throw new IOException("Invalid response length");
+      }
+
+      response = new byte[responseLength];
+    }
+
+    int blockSize = Math.min(end - off, response.length - received);
+    System.arraycopy(frame, off, response, received, blockSize);
+    received += blockSize;
+    sequenceIdx++;
+
+    return isComplete();
+  }
+
+  /**
+   * Returns whether the whole response has been received.
+   *
+   * @return true if the response is complete, false otherwise
+   */
+  public boolean isComplete() {
+    return response != null && received == response.length;
+  }
+
+  /**
+   * Returns the reassembled response. The response buffer is not copied.
+   *
+   * @return the response
+   * @throws IllegalStateException if the response is not complete yet
+   */
+  public APDUResponse getResponse() {
+    if (!isComplete()) {
+      throw new IllegalStateException("The response is not complete");
+    }
+
+    return new APDUResponse(response);
+  }
+
+  private int checkHeader(byte[] frame, int off) throws IOException {
+    if (channelInfo) {
+      if (frame[off++] != (byte) (LedgerUtil.LEDGER_DEFAULT_CHANNEL >> 8) || frame[off++] != (byte) LedgerUtil.LEDGER_DEFAULT_CHANNEL) {
+        throw new IOException("Invalid channel");
+      }
+    }
+
+    if (frame[off++] != LedgerUtil.TAG_APDU) {
+      throw new IOException("Invalid tag");
+    }
+
+    if (frame[off++] != (byte) (sequenceIdx >> 8) || frame[off++] != (byte) sequenceIdx) {
+      throw new IOException("Invalid sequence");
+    }
+
+    return off;
+  }
+}
@@ -1,11 +1,11 @@
 package im.status.keycard.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class LedgerUtil {
-  private static final int LEDGER_DEFAULT_CHANNEL = 1;
-  private static final int TAG_APDU = 0x05;
+  static final int LEDGER_DEFAULT_CHANNEL = 1;
+  static final byte TAG_APDU = 0x05;
 
   private LedgerUtil() {}
 
@@ -15,139 +15,83 @@ public class LedgerUtil {
   }
 
   public static APDUResponse send(APDUCommand cmd, int segmentSize, boolean channelInfo, LedgerUtil.Callback cb) throws IOException {
-    int offset = 0;
-
-    byte[] command = LedgerUtil.wrapCommandAPDU(cmd.serialize(), segmentSize, channelInfo);
-    byte[] chunk = new byte[segmentSize];
-
-    while(offset != command.length) {
-      System.arraycopy(command, offset, chunk, 0, segmentSize);
-      cb.write(chunk);
-      offset += segmentSize;
-    }
-
-    ByteArrayOutputStream response = new ByteArrayOutputStream();
-    byte[] responseData = null;
-
-    while ((responseData = LedgerUtil.unwrapResponseAPDU(response.toByteArray(), segmentSize, channelInfo)) == null) {
-      cb.read(chunk);
-      response.write(chunk, 0, segmentSize);
-    }
-
-    return new APDUResponse(responseData);
+    return send(cmd, new byte[segmentSize], channelInfo, cb);
   }
 
-  private static byte[] unwrapResponseAPDU(byte[] data, int segmentSize, boolean channelInfo) throws IOException {
-    if ((data == null) || (data.length < 7 + 5)) {
-      return null;
-    }
-
+  /**
+   * Sends the command using the given chunk buffer for both writing and reading. The command is framed directly from
+   * the APDUCommand into the chunk, so callers reusing the same buffer across calls do not allocate per frame.
+   *
+   * @param cmd the command to send
+   * @param chunk the chunk buffer, its length is the segment size
+   * @param channelInfo whether the frames carry channel information
+   * @param cb the transport callback
+   * @return the response
+   * @throws IOException communication error
+   */
+  public static APDUResponse send(APDUCommand cmd, byte[] chunk, boolean channelInfo, LedgerUtil.Callback cb) throws IOException {
+    int length = cmd.getSerializedLength();
+    int offset = 0;
     int sequenceIdx = 0;
-    int offset = checkResponseHeader(data, 0, sequenceIdx, channelInfo);
-
-    int  responseLength = ((data[offset++] & 0xff) << 8);
-    responseLength |= (data[offset++] & 0xff);
-
-    if (data.length < 7 + responseLength) {
-      return null;
-    }
 
-    ByteArrayOutputStream response = new ByteArrayOutputStream();
-
-    int headerSize = channelInfo ? 5 : 3;
-    int initialHeaderSize = headerSize + 2;
-
-    int blockSize = (responseLength > segmentSize - initialHeaderSize ? segmentSize - initialHeaderSize : responseLength);
-    response.write(data, offset, blockSize);
-    offset += blockSize;
-
-    while (response.size() != responseLength) {
-      sequenceIdx++;
-
-      if (offset == data.length) {
-        return null;
-      }
+    do {
+      offset = writeCommandFrame(cmd, chunk, offset, sequenceIdx++, channelInfo);
+      cb.write(chunk);
+    } while (offset != length);
 
-      offset = checkResponseHeader(data, offset, sequenceIdx, channelInfo);
+    LedgerFrameDecoder decoder = new LedgerFrameDecoder(channelInfo);
 
-      blockSize = (responseLength - response.size() > segmentSize - headerSize ? segmentSize - headerSize : responseLength - response.size());
-      if (blockSize > data.length - offset) {
-        return null;
-      }
-      response.write(data, offset, blockSize);
-      offset += blockSize;
-    }
+    do {
+      cb.read(chunk);
+    } while (!decoder.decode(chunk, 0, chunk.length));
 
-    return response.toByteArray();
+    return decoder.getResponse();
   }
 
-  private static int checkResponseHeader(byte[] data, int offset, int sequenceIdx, boolean channelInfo) throws IOException {
-    if (channelInfo) {
-      if (data[offset++] != (LEDGER_DEFAULT_CHANNEL >> 8)) {
-        throw new IOException("Invalid channel");
-      }
-
-      if (data[offset++] != (LEDGER_DEFAULT_CHANNEL & 0xff)) {
-        throw new IOException("Invalid channel");
+  /**
+   * Writes the frame of the command starting at the given offset of the serialized APDU in the chunk. The first frame
+   * also carries the length of the APDU. Unused bytes at the end of the chunk are zeroed.
+   *
+   * @param cmd the command
+   * @param chunk the chunk buffer, its length is the segment size
+   * @param offset the offset in the serialized APDU
+   * @param sequenceIdx the sequence index of the frame
+   * @param channelInfo whether the frame carries channel information
+   * @return the offset in the serialized APDU after this frame
+   * @throws IOException the APDU is too long for the Ledger transport
+   */
+  static int writeCommandFrame(APDUCommand cmd, byte[] chunk, int offset, int sequenceIdx, boolean channelInfo) throws IOException {
+    int pos = writeCommandHeader(chunk, sequenceIdx, channelInfo);
+
+    if (offset == 0) {
+      int length = cmd.getSerializedLength();
+
+      if (length > 0xffff) {
+        throw new IOException("The APDU is too long for the Ledger transport");
       }
-    }
 
-    if (data[offset++] != TAG_APDU) {
-      throw new IOException("Invalid tag");
+      chunk[pos++] = (byte) (length >> 8);
+      chunk[pos++] = (byte) length;
     }
 
-    if (data[offset++] != (sequenceIdx >> 8)) {
-      throw new IOException("Invalid sequence");
-    }
+    int written = cmd.serialize(offset, chunk, pos, chunk.length - pos);
+    Arrays.fill(chunk, pos + written, chunk.length, (byte) 0);
 
-    if (data[offset++] != (sequenceIdx & 0xff)) {
-      throw new IOException("Invalid sequence");
-    }
-    return offset;
+    return offset + written;
   }
 
-  private static byte[] wrapCommandAPDU(byte[] command, int segmentSize, boolean channelInfo) {
-    ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private static int writeCommandHeader(byte[] chunk, int sequenceIdx, boolean channelInfo) {
+    int off = 0;
 
-    int headerSize = channelInfo ? 5 : 3;
-    int initialHeaderSize = headerSize + 2;
-
-    int sequenceIdx = 0;
-    int offset = 0;
-    writeCommandHeader(output, sequenceIdx, channelInfo);
-    sequenceIdx++;
-
-    output.write(command.length >> 8);
-    output.write(command.length);
-    int blockSize = (command.length > (segmentSize - initialHeaderSize) ? (segmentSize - initialHeaderSize) : command.length);
-    output.write(command, offset, blockSize);
-    offset += blockSize;
-
-    while (offset != command.length) {
-      writeCommandHeader(output, sequenceIdx, channelInfo);
-      sequenceIdx++;
-
-      blockSize = ((command.length - offset) > (segmentSize - headerSize) ? (segmentSize - headerSize) : (command.length - offset));
-      output.write(command, offset, blockSize);
-      offset += blockSize;
-    }
-
-    if ((output.size() % segmentSize) != 0) {
-      byte[] padding = new byte[segmentSize - (output.size() % segmentSize)];
-      output.write(padding, 0, padding.length);
-    }
-
-    return output.toByteArray();
-  }
-
-  private static void writeCommandHeader(ByteArrayOutputStream output, int sequenceIdx, boolean channelInfo) {
     if (channelInfo) {
-      output.write(LEDGER_DEFAULT_CHANNEL >> 8);
-      output.write(LEDGER_DEFAULT_CHANNEL);
+      chunk[off++] = (byte) (LEDGER_DEFAULT_CHANNEL >> 8);
+      chunk[off++] = (byte) LEDGER_DEFAULT_CHANNEL;
     }
 
-    output.write(TAG_APDU);
-    output.write(sequenceIdx >> 8);
-    output.write(sequenceIdx);
+    chunk[off++] = TAG_APDU;
+    chunk[off++] = (byte) (sequenceIdx >> 8);
+    chunk[off++] = (byte) sequenceIdx;
+
+    return off;
   }
 }
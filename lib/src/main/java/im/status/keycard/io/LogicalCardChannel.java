@@ -0,0 +1,241 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A view of an ISO 7816-4 logical channel of a card. Every command sent through the view has the channel number set in
+ * its CLA byte before being sent on the underlying channel, so a command set created on the view works with an applet
+ * selected on that logical channel only. Several applets can then stay selected at the same time on one card, for
+ * example the Keycard applet with its secure channel open and the Cash applet, and their commands can be interleaved
+ * without selecting the applets and opening the secure channel again each time. The applets must support being
+ * selected on a logical channel other than the basic one.
+ *
+ * Logical channels are opened and closed with MANAGE CHANNEL commands sent on the basic channel. The underlying channel
+ * must not be used by several threads at the same time, unless its transport serializes the commands.
+ */
+public class LogicalCardChannel implements CardChannel {
+  static final int INS_MANAGE_CHANNEL = 0x70;
+  static final int MANAGE_CHANNEL_P1_OPEN = 0x00;
+  static final int MANAGE_CHANNEL_P1_CLOSE = 0x80;
+
+  /**
+   * The highest logical channel number which can be encoded in the CLA byte.
+   */
+  public static final int MAX_CHANNEL_NUMBER = 19;
+
+  private final CardChannel channel;
+  private final int number;
+  private volatile boolean closed;
+
+  /**
+   * Creates a view of a logical channel which is already open on the card. Use the open method to open a new one.
+   *
+   * @param channel the underlying channel
+   * @param number the logical channel number, 0 being the basic channel
+   */
+  public LogicalCardChannel(CardChannel channel, int number) {
+    if (number < 0 || number > MAX_CHANNEL_NUMBER) {
+      throw new IllegalArgumentException("Invalid logical channel number: " + number);
+    }
+
+    this.channel = channel;
+    this.number = number;
+  }
+
+  /**
+   * Opens a new logical channel with a MANAGE CHANNEL command, the card choosing its number, and returns a view of it.
+   * No applet is selected on the new channel.
+   *
+   * @param channel the underlying channel
+   * @return the logical channel
+   * @throws IOException communication error
+   * @throws APDUException the card could not open a new logical channel
+   */
+  public static LogicalCardChannel open(CardChannel channel) throws IOException, APDUException {
+    APDUCommand manageChannel = new APDUCommand(0x00, INS_MANAGE_CHANNEL, MANAGE_CHANNEL_P1_OPEN, 0, new byte[0], 1);
+    APDUResponse resp = channel.send(manageChannel).checkOK("Opening the logical channel failed");
+
+    if (resp.getDataLength() != 1) {
+      throw new APDUException("Invalid MANAGE CHANNEL response");
+    }
+
+    return new LogicalCardChannel(channel, resp.getData()[0] & 0xff);
+  }
+
+  /**
+   * Closes the logical channel with a MANAGE CHANNEL command, deselecting its applet. The view cannot be used
+   * afterwards. Closing the basic channel only marks the view as closed.
+   *
+   * @throws IOException communication error
+   * @throws APDUException the card could not close the logical channel
+   */
+  public void close() throws IOException, APDUException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    if (number != 0) {
+      APDUCommand manageChannel = new APDUCommand(0x00, INS_MANAGE_CHANNEL, MANAGE_CHANNEL_P1_CLOSE, number, new byte[0]);
+      channel.send(manageChannel).checkOK("Closing the logical channel failed");
+    }
+  }
+
+  /**
+   * Returns the logical channel number.
+   *
+   * @return the channel number
+   */
+  @Override
+  public int getChannelNumber() {
+    return number;
+  }
+
+  /**
+   * Returns the underlying channel.
+   *
+   * @return the underlying channel
+   */
+  public CardChannel getChannel() {
+    return channel;
+  }
+
+  /**
+   * True if the view has been closed, false otherwise.
+   *
+   * @return true if closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    checkOpen();
+    return channel.send(onChannel(cmd));
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    checkOpen();
+    return channel.send(onChannel(cmd), deadline);
+  }
+
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    if (closed) {
+      CompletableFuture<APDUResponse> future = new CompletableFuture<>();
+      future.completeExceptionally(new IOException("The logical channel is closed"));
+      return future;
+    }
+
+    return channel.sendAsync(onChannel(cmd));
+  }
+
+  @Override
+  public List<APDUResponse> sendBatch(List<APDUCommand> cmds, APDUWrapper wrapper) throws IOException {
+    checkOpen();
+
+    List<APDUCommand> encoded = new ArrayList<>(cmds.size());
+
+    for (APDUCommand cmd : cmds) {
+      encoded.add(onChannel(cmd));
+    }
+
+    if (wrapper == null) {
+      return channel.sendBatch(encoded, null);
+    }
+
+    // the wrapper may change the CLA, for example to signal secure messaging
+    return channel.sendBatch(encoded, new APDUWrapper() {
+      @Override
+      public APDUCommand wrap(APDUCommand cmd) throws IOException {
+        return onChannel(wrapper.wrap(cmd));
+      }
+
+      @Override
+      public APDUResponse unwrap(APDUResponse resp) throws IOException {
+        return wrapper.unwrap(resp);
+      }
+    });
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    channel.beginTransaction();
+  }
+
+  @Override
+  public void endTransaction() throws IOException {
+    channel.endTransaction();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return !closed && channel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return channel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+
+  /**
+   * Returns the given CLA byte with its logical channel number set to the given one. Channels 0 to 3 use the first
+   * interindustry encoding and channels 4 to 19 the further interindustry encoding, the command chaining and secure
+   * messaging indications being converted between the two. The proprietary class bit is kept.
+   *
+   * @param cla the CLA byte
+   * @param number the logical channel number
+   * @return the CLA byte for the given channel
+   */
+  public static int setChannelNumber(int cla, int number) {
+    int sm = (cla & 0x40) == 0 ? (cla & 0x0c) : ((cla & 0x20) != 0 ? 0x08 : 0);
+    int base = cla & 0x90;
+
+    if (number < 4) {
+      return base | sm | number;
+    }
+
+    return base | 0x40 | (sm != 0 ? 0x20 : 0) | (number - 4);
+  }
+
+  /**
+   * Returns the logical channel number encoded in the given CLA byte.
+   *
+   * @param cla the CLA byte
+   * @return the logical channel number
+   */
+  public static int getChannelNumber(int cla) {
+    if ((cla & 0x40) != 0) {
+      return 4 + (cla & 0x0f);
+    }
+
+    return cla & 0x03;
+  }
+
+  private APDUCommand onChannel(APDUCommand cmd) {
+    int cla = setChannelNumber(cmd.getCla(), number);
+
+    if (cla == cmd.getCla()) {
+      return cmd;
+    }
+
+    return new APDUCommand(cla, cmd.getIns(), cmd.getP1(), cmd.getP2(), cmd.getData(), cmd.getNe());
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("The logical channel is closed");
+    }
+  }
+}
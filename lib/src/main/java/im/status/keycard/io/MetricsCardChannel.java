@@ -0,0 +1,377 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A CardChannel decorator collecting metrics about every command sent through it: number of calls, communication
+ * errors, status words other than 0x9000, bytes sent and received and a latency histogram. Metrics are kept for each
+ * CLA/INS pair and can be grouped by operation name in snapshots.
+ *
+ * Recording is lock-free and does not allocate once a CLA/INS pair has been seen, so the decorator can be left on in
+ * production. Use KeycardCommandSet::getCommandName as CommandNamer to get the names of the Keycard commands.
+ */
+public class MetricsCardChannel implements CardChannel {
+  /**
+   * Maps a CLA/INS pair to an operation name.
+   */
+  public interface CommandNamer {
+    /**
+     * Returns the name of the operation, or null if unknown.
+     *
+     * @param cla the CLA byte
+     * @param ins the INS byte
+     * @return the operation name
+     */
+    String getName(int cla, int ins);
+  }
+
+  private final CardChannel channel;
+  private final CommandNamer namer;
+  private final AtomicReferenceArray<Counters> counters;
+
+  /**
+   * Wraps the given channel. Operations are named after their CLA and INS.
+   *
+   * @param channel the channel to instrument
+   */
+  public MetricsCardChannel(CardChannel channel) {
+    this(channel, null);
+  }
+
+  /**
+   * Wraps the given channel, naming operations with the given namer.
+   *
+   * @param channel the channel to instrument
+   * @param namer the operation namer, can be null
+   */
+  public MetricsCardChannel(CardChannel channel, CommandNamer namer) {
+    this.channel = channel;
+    this.namer = namer;
+    this.counters = new AtomicReferenceArray<>(256);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    return send(cmd, Deadline.NONE);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    Counters c = countersFor(cmd);
+    long start = System.nanoTime();
+
+    try {
+      APDUResponse resp = channel.send(cmd, deadline);
+      c.record(cmd, resp, System.nanoTime() - start);
+      return resp;
+    } catch (IOException | RuntimeException e) {
+      c.recordError(cmd, System.nanoTime() - start);
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<APDUResponse> sendAsync(APDUCommand cmd) {
+    Counters c = countersFor(cmd);
+    long start = System.nanoTime();
+
+    return channel.sendAsync(cmd).whenComplete((resp, e) -> {
+      if (e == null) {
+        c.record(cmd, resp, System.nanoTime() - start);
+      } else {
+        c.recordError(cmd, System.nanoTime() - start);
+      }
+    });
+  }
+
+  /**
+   * Forwards the batch to the wrapped channel, so that its transaction semantics are preserved, timing each command
+   * between the wrapping and the unwrapping step.
+   *
+   * @param cmds the commands to send
+   * @param wrapper the wrapper, or null to send the commands as they are
+   * @return the unwrapped card responses
+   * @throws IOException communication error
+   */
+  @Override
+  public List<APDUResponse> sendBatch(List<APDUCommand> cmds, APDUWrapper wrapper) throws IOException {
+    BatchTimer timer = new BatchTimer(wrapper);
+
+    try {
+      return channel.sendBatch(cmds, timer);
+    } catch (IOException | RuntimeException e) {
+      timer.recordError();
+      throw e;
+    }
+  }
+
+  /**
+   * Times each command of a batch. A command which has been wrapped but whose response never came back failed in the
+   * transport and is counted as an error.
+   */
+  private class BatchTimer implements APDUWrapper {
+    private final APDUWrapper wrapper;
+    private APDUCommand current;
+    private long start;
+
+    BatchTimer(APDUWrapper wrapper) {
+      this.wrapper = wrapper;
+    }
+
+    @Override
+    public APDUCommand wrap(APDUCommand cmd) throws IOException {
+      current = wrapper == null ? cmd : wrapper.wrap(cmd);
+      start = System.nanoTime();
+      return current;
+    }
+
+    @Override
+    public APDUResponse unwrap(APDUResponse resp) throws IOException {
+      APDUCommand cmd = current;
+      current = null;
+      countersFor(cmd).record(cmd, resp, System.nanoTime() - start);
+      return wrapper == null ? resp : wrapper.unwrap(resp);
+    }
+
+    void recordError() {
+      if (current != null) {
+        countersFor(current).recordError(current, System.nanoTime() - start);
+        current = null;
+      }
+    }
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    channel.beginTransaction();
+  }
+
+  @Override
+  public void endTransaction() throws IOException {
+    channel.endTransaction();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return channel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return channel.getChannelNumber();
+  }
+
+  /**
+   * Returns a copy of the metrics collected so far.
+   *
+   * @return the snapshot
+   */
+  public Snapshot snapshot() {
+    List<CommandStats> commands = new ArrayList<>();
+
+    for (int i = 0; i < 256; i++) {
+      for (Counters c = counters.get(i); c != null; c = c.next) {
+        commands.add(c.snapshot());
+      }
+    }
+
+    return new Snapshot(commands);
+  }
+
+  /**
+   * Clears all metrics. Commands completing concurrently with the reset may be partially kept.
+   */
+  public void reset() {
+    for (int i = 0; i < 256; i++) {
+      for (Counters c = counters.get(i); c != null; c = c.next) {
+        c.reset();
+      }
+    }
+  }
+
+  private Counters countersFor(APDUCommand cmd) {
+    int cla = cmd.getCla();
+    int ins = cmd.getIns();
+
+    while (true) {
+      Counters head = counters.get(ins);
+
+      for (Counters c = head; c != null; c = c.next) {
+        if (c.cla == cla) {
+          return c;
+        }
+      }
+
+      Counters c = new Counters(cla, ins, operationName(cla, ins), head);
+
+      if (counters.compareAndSet(ins, head, c)) {
+        return c;
+      }
+    }
+  }
+
+  private String operationName(int cla, int ins) {
+    String name = namer == null ? null : namer.getName(cla, ins);
+    return name != null ? name : String.format("%02X%02X", cla, ins);
+  }
+
+  /**
+   * The counters of a CLA/INS pair. Instances for the same INS are chained in a list which is only ever prepended to.
+   * Status words are counted in a small open addressing table, each slot holding the SW plus one, so that 0 marks a
+   * free slot. Status words which do not fit once the table is full are counted together under SW 0.
+   */
+  private static class Counters {
+    private static final int SW_SLOTS = 32;
+
+    final int cla;
+    final int ins;
+    final String name;
+    final Counters next;
+
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong bytesOut = new AtomicLong();
+    final AtomicLong bytesIn = new AtomicLong();
+    final AtomicIntegerArray swKeys = new AtomicIntegerArray(SW_SLOTS);
+    final AtomicLongArray swCounts = new AtomicLongArray(SW_SLOTS);
+    final AtomicLong otherStatusWords = new AtomicLong();
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    Counters(int cla, int ins, String name, Counters next) {
+      this.cla = cla;
+      this.ins = ins;
+      this.name = name;
+      this.next = next;
+    }
+
+    void record(APDUCommand cmd, APDUResponse resp, long nanos) {
+      calls.incrementAndGet();
+      bytesOut.addAndGet(cmd.getSerializedLength());
+      bytesIn.addAndGet(resp.getDataLength() + 2);
+      latency.record(nanos);
+
+      int sw = resp.getSw();
+
+      if (sw != APDUResponse.SW_OK) {
+        countStatusWord(sw);
+      }
+    }
+
+    private void countStatusWord(int sw) {
+      int key = sw + 1;
+      int slot = (sw * 0x9E3779B1) >>> 27;
+
+      for (int i = 0; i < SW_SLOTS; i++, slot = (slot + 1) & (SW_SLOTS - 1)) {
+        int k = swKeys.get(slot);
+
+        if (k == 0 && (swKeys.compareAndSet(slot, 0, key) || swKeys.get(slot) == key)) {
+          k = key;
+        }
+
+        if (k == key) {
+          swCounts.incrementAndGet(slot);
+          return;
+        }
+      }
+
+      otherStatusWords.incrementAndGet();
+    }
+
+    void recordError(APDUCommand cmd, long nanos) {
+      calls.incrementAndGet();
+      errors.incrementAndGet();
+      bytesOut.addAndGet(cmd.getSerializedLength());
+      latency.record(nanos);
+    }
+
+    void reset() {
+      calls.set(0);
+      errors.set(0);
+      bytesOut.set(0);
+      bytesIn.set(0);
+      for (int i = 0; i < SW_SLOTS; i++) {
+        swKeys.set(i, 0);
+        swCounts.set(i, 0);
+      }
+
+      otherStatusWords.set(0);
+      latency.reset();
+    }
+
+    CommandStats snapshot() {
+      Map<Integer, Long> sws = new HashMap<>();
+
+      for (int i = 0; i < SW_SLOTS; i++) {
+        int key = swKeys.get(i);
+        long count = swCounts.get(i);
+
+        if (key != 0 && count != 0) {
+          sws.put(key - 1, count);
+        }
+      }
+
+      if (otherStatusWords.get() != 0) {
+        sws.put(0, otherStatusWords.get());
+      }
+
+      return new CommandStats(cla, ins, name, calls.get(), errors.get(), bytesOut.get(), bytesIn.get(), sws, latency.snapshot());
+    }
+  }
+
+  /**
+   * An immutable copy of the metrics of a MetricsCardChannel.
+   */
+  public static class Snapshot {
+    private final List<CommandStats> commands;
+
+    Snapshot(List<CommandStats> commands) {
+      this.commands = Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * Returns the statistics of each CLA/INS pair seen.
+     *
+     * @return the statistics of each CLA/INS pair
+     */
+    public List<CommandStats> getCommands() {
+      return commands;
+    }
+
+    /**
+     * Returns the statistics grouped by operation name. Pairs mapping to the same name are combined.
+     *
+     * @return the statistics of each operation
+     */
+    public Map<String, CommandStats> getOperations() {
+      Map<String, CommandStats> operations = new LinkedHashMap<>();
+
+      for (CommandStats stats : commands) {
+        CommandStats existing = operations.get(stats.getName());
+        operations.put(stats.getName(), existing == null ? stats : existing.merge(stats));
+      }
+
+      return operations;
+    }
+  }
+}
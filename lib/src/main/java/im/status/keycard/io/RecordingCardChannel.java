@@ -0,0 +1,154 @@
+package im.status.keycard.io;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+/**
+ * A CardChannel decorator writing every command and response, with its timing, to a binary trace which can be served
+ * back by a ReplayCardChannel.
+ *
+ * Secure channel sessions depend on the host randomness, so in order to be replayed the random number generator used by
+ * the SecureChannelSession must be the one returned by getSecureRandom, which records its output in the same trace.
+ */
+public class RecordingCardChannel implements CardChannel, Closeable {
+  private final CardChannel channel;
+  private final OutputStream out;
+  private final long startTime;
+  private final SecureRandom random;
+
+  /**
+   * Wraps the given channel, writing the trace to the given stream. The stream is buffered internally and is closed
+   * when this channel is closed.
+   *
+   * @param channel the channel to record
+   * @param out the trace output stream
+   * @throws IOException error writing the trace header
+   */
+  public RecordingCardChannel(CardChannel channel, OutputStream out) throws IOException {
+    this.channel = channel;
+    this.out = new BufferedOutputStream(out);
+    this.startTime = System.nanoTime();
+    this.random = new RecordingSecureRandom();
+
+    this.out.write(APDUTrace.MAGIC);
+    this.out.write(APDUTrace.VERSION);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd) throws IOException {
+    return send(cmd, Deadline.NONE);
+  }
+
+  @Override
+  public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+    long start = System.nanoTime();
+
+    try {
+      APDUResponse resp = channel.send(cmd, deadline);
+      writeExchange(start, cmd, resp);
+      return resp;
+    } catch (IOException e) {
+      writeFailure(start, cmd, e);
+      throw e;
+    }
+  }
+
+  @Override
+  public void beginTransaction() throws IOException {
+    channel.beginTransaction();
+  }
+
+  @Override
+  public void endTransaction() throws IOException {
+    channel.endTransaction();
+  }
+
+  @Override
+  public boolean isConnected() {
+    return channel.isConnected();
+  }
+
+  @Override
+  public int getMaxTransceiveLength() {
+    return channel.getMaxTransceiveLength();
+  }
+
+  @Override
+  public int pairingPasswordPBKDF2IterationCount() {
+    return channel.pairingPasswordPBKDF2IterationCount();
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return channel.getChannelNumber();
+  }
+
+  /**
+   * Returns a random number generator backed by a new SecureRandom, which writes all the bytes it generates in the trace.
+   *
+   * @return the recording random number generator
+   */
+  public SecureRandom getSecureRandom() {
+    return random;
+  }
+
+  /**
+   * Flushes the trace.
+   *
+   * @throws IOException error writing the trace
+   */
+  public synchronized void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Flushes and closes the trace. The wrapped channel is not closed.
+   *
+   * @throws IOException error writing the trace
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+  private synchronized void writeExchange(long start, APDUCommand cmd, APDUResponse resp) throws IOException {
+    out.write(APDUTrace.RECORD_EXCHANGE);
+    writeTiming(start);
+    APDUTrace.writeBytes(out, cmd.serialize());
+    APDUTrace.writeBytes(out, resp.getBytes());
+  }
+
+  private synchronized void writeFailure(long start, APDUCommand cmd, IOException e) throws IOException {
+    out.write(APDUTrace.RECORD_FAILURE);
+    writeTiming(start);
+    APDUTrace.writeBytes(out, cmd.serialize());
+    APDUTrace.writeBytes(out, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void writeTiming(long start) throws IOException {
+    long end = System.nanoTime();
+    APDUTrace.writeVarint(out, (start - startTime) / 1000);
+    APDUTrace.writeVarint(out, (end - start) / 1000);
+  }
+
+  private synchronized void writeRandom(byte[] bytes) {
+    try {
+      out.write(APDUTrace.RECORD_RANDOM);
+      APDUTrace.writeBytes(out, bytes);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write the trace", e);
+    }
+  }
+
+  private class RecordingSecureRandom extends SecureRandom {
+    @Override
+    public synchronized void nextBytes(byte[] bytes) {
+      super.nextBytes(bytes);
+      writeRandom(bytes);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package im.status.keycard.io;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * A CardChannel serving the responses of a trace written by a RecordingCardChannel, without any card. Responses are
+ * returned in the recorded order, either immediately or after waiting for the recorded duration of each exchange.
+ *
+ * The random number generator returned by getSecureRandom serves the recorded host randomness, so a SecureChannelSession
+ * constructed with it produces the same commands as in the recorded session. In strict mode, each command is checked
+ * against the recorded one and a mismatch fails with an IOException.
+ */
+public class ReplayCardChannel implements CardChannel, Closeable {
+  private final InputStream in;
+  private final boolean realTime;
+  private final boolean strict;
+  private final SecureRandom random;
+  private int nextRecord;
+
+  /**
+   * Reads the trace from the given stream, replaying as fast as possible and checking the commands.
+   *
+   * @param in the trace input stream
+   * @throws IOException the trace cannot be read or is not a valid trace
+   */
+  public ReplayCardChannel(InputStream in) throws IOException {
+    this(in, false, true);
+  }
+
+  /**
+   * Reads the trace from the given stream. The stream is buffered internally and closed when this channel is closed.
+   *
+   * @param in the trace input stream
+   * @param realTime whether each exchange takes as long as it took when recorded
+   * @param strict whether the commands sent must match the recorded ones
+   * @throws IOException the trace cannot be read or is not a valid trace
+   */
+  public ReplayCardChannel(InputStream in, boolean realTime, boolean strict) throws IOException {
+    this.in = new BufferedInputStream(in);
+    this.realTime = realTime;
+    this.strict = strict;
+    this.random = new ReplaySecureRandom();
+
+    byte[] magic = new byte[APDUTrace.MAGIC.length];
+
+    if (this.in.read(magic) != magic.length || !Arrays.equals(magic, APDUTrace.MAGIC)) {
+      throw new IOException("Not an APDU trace");
+    }
+
+    if (this.in.read() != APDUTrace.VERSION) {
+      throw new IOException("Unsupported trace version");
+    }
+
+    this.nextRecord = this.in.read();
+  }
+
+  @Override
+  public synchronized APDUResponse send(APDUCommand cmd) throws IOException {
+    if (nextRecord != APDUTrace.RECORD_EXCHANGE && nextRecord != APDUTrace.RECORD_FAILURE) {
+      throw new IOException(nextRecord < 0 ? "End of trace reached" : "Trace out of sync: a command was not expected");
+    }
+
+    int type = nextRecord;
+    APDUTrace.readVarint(in);
+    long duration = APDUTrace.readVarint(in);
+    byte[] recordedCmd = APDUTrace.readBytes(in);
+    byte[] payload = APDUTrace.readBytes(in);
+    nextRecord = in.read();
+
+    if (strict && !Arrays.equals(recordedCmd, cmd.serialize())) {
+      throw new IOException("Trace out of sync: the command does not match the recorded one");
+    }
+
+    if (realTime) {
+      try {
+        Thread.sleep(duration / 1000, (int) ((duration % 1000) * 1000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Replay interrupted", e);
+      }
+    }
+
+    if (type == APDUTrace.RECORD_FAILURE) {
+      throw new IOException(new String(payload, StandardCharsets.UTF_8));
+    }
+
+    return new APDUResponse(payload);
+  }
+
+  @Override
+  public synchronized boolean isConnected() {
+    return nextRecord >= 0;
+  }
+
+  /**
+   * Returns a random number generator serving the randomness recorded in the trace. It fails with an
+   * IllegalStateException if random bytes are requested when the trace does not have them at that point.
+   *
+   * @return the replaying random number generator
+   */
+  public SecureRandom getSecureRandom() {
+    return random;
+  }
+
+  /**
+   * Closes the trace.
+   *
+   * @throws IOException error closing the trace
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    in.close();
+  }
+
+  private synchronized void readRandom(byte[] bytes) {
+    try {
+      if (nextRecord != APDUTrace.RECORD_RANDOM) {
+        throw new IllegalStateException("Trace out of sync: random bytes were not expected");
+      }
+
+      byte[] recorded = APDUTrace.readBytes(in);
+      nextRecord = in.read();
+
+      if (recorded.length != bytes.length) {
+        throw new IllegalStateException("Trace out of sync: " + bytes.length + " random bytes requested, " + recorded.length + " recorded");
+      }
+
+      System.arraycopy(recorded, 0, bytes, 0, bytes.length);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read the trace", e);
+    }
+  }
+
+  private class ReplaySecureRandom extends SecureRandom {
+    @Override
+    public void nextBytes(byte[] bytes) {
+      readRandom(bytes);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package im.status.keycard.io;
+
+import java.io.IOException;
+
+/**
+ * Bounded exponential backoff between attempts of an operation failing with communication errors. The delay before
+ * the first retry is the initial delay, each following delay is multiplied by the given factor up to the maximum delay.
+ */
+public class RetryPolicy {
+  /**
+   * 5 attempts, waiting 50, 100, 200 and 400 ms between them.
+   */
+  public static final RetryPolicy DEFAULT = new RetryPolicy(5, 50, 1000, 2);
+
+  /**
+   * A single attempt, never retrying.
+   */
+  public static final RetryPolicy NO_RETRY = new RetryPolicy(1, 0, 0, 1);
+
+  private final int maxAttempts;
+  private final long initialDelayMS;
+  private final long maxDelayMS;
+  private final double multiplier;
+
+  /**
+   * Creates a policy.
+   *
+   * @param maxAttempts the maximum number of attempts, including the first one
+   * @param initialDelayMS the delay before the first retry in milliseconds
+   * @param maxDelayMS the maximum delay between attempts in milliseconds
+   * @param multiplier the factor applied to the delay after each retry, at least 1
+   */
+  public RetryPolicy(int maxAttempts, long initialDelayMS, long maxDelayMS, double multiplier) {
+    if (maxAttempts < 1 || initialDelayMS < 0 || maxDelayMS < initialDelayMS || multiplier < 1) {
+      throw new IllegalArgumentException("Invalid retry policy");
+    }
+
+    this.maxAttempts = maxAttempts;
+    this.initialDelayMS = initialDelayMS;
+    this.maxDelayMS = maxDelayMS;
+    this.multiplier = multiplier;
+  }
+
+  /**
+   * Returns the maximum number of attempts, including the first one.
+   *
+   * @return the maximum number of attempts
+   */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Returns the delay to wait before the given retry.
+   *
+   * @param retry the retry number, starting at 1 for the second attempt
+   * @return the delay in milliseconds
+   */
+  public long getDelay(int retry) {
+    double delay = initialDelayMS * Math.pow(multiplier, retry - 1);
+    return (long) Math.min(delay, maxDelayMS);
+  }
+
+  /**
+   * Waits before the given retry.
+   *
+   * @param retry the retry number, starting at 1 for the second attempt
+   * @throws IOException if the thread is interrupted while waiting
+   */
+  public void backoff(int retry) throws IOException {
+    long delay = getDelay(retry);
+
+    if (delay == 0) {
+      return;
+    }
+
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to retry", e);
+    }
+  }
+}
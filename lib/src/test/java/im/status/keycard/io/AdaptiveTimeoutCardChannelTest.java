@@ -0,0 +1,102 @@
+package im.status.keycard.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AdaptiveTimeoutCardChannelTest {
+  private static final int INS = 0xC0;
+  private static final APDUCommand CMD = new APDUCommand(0x80, INS, 0, 0, new byte[0]);
+
+  @Test
+  public void callerDeadlineShorterThanAdaptiveTimeout() throws IOException {
+    HangingCardChannel card = new HangingCardChannel();
+    AdaptiveTimeoutCardChannel channel = learn(card);
+    assertEquals(50, channel.getTimeout(INS, TimeUnit.MILLISECONDS));
+
+    card.hanging = true;
+
+    for (int i = 0; i <= AdaptiveTimeoutCardChannel.RESET_AFTER_TIMEOUTS; i++) {
+      expectTimeout(channel, Deadline.after(10, TimeUnit.MILLISECONDS));
+    }
+
+    assertEquals(50, channel.getTimeout(INS, TimeUnit.MILLISECONDS));
+
+    card.hanging = false;
+    channel.send(CMD);
+    assertEquals(50, channel.getTimeout(INS, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void consecutiveAdaptiveTimeoutsReset() throws IOException {
+    HangingCardChannel card = new HangingCardChannel();
+    AdaptiveTimeoutCardChannel channel = learn(card);
+
+    card.hanging = true;
+
+    for (int i = 1; i < AdaptiveTimeoutCardChannel.RESET_AFTER_TIMEOUTS; i++) {
+      expectTimeout(channel, Deadline.NONE);
+      assertEquals(50, channel.getTimeout(INS, TimeUnit.MILLISECONDS));
+    }
+
+    expectTimeout(channel, Deadline.after(1, TimeUnit.SECONDS));
+    assertEquals(1000, channel.getTimeout(INS, TimeUnit.MILLISECONDS));
+  }
+
+  private static AdaptiveTimeoutCardChannel learn(CardChannel card) throws IOException {
+    AdaptiveTimeoutCardChannel channel = new AdaptiveTimeoutCardChannel(card, 1000, 50, 0.99, 10, 5);
+
+    for (int i = 0; i < 5; i++) {
+      channel.send(CMD);
+    }
+
+    return channel;
+  }
+
+  private static void expectTimeout(CardChannel channel, Deadline deadline) throws IOException {
+    try {
+      channel.send(CMD, deadline);
+      fail("The command did not time out");
+    } catch (CardTimeoutException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Answers immediately, or when hanging, waits for the deadline and times out.
+   */
+  private static class HangingCardChannel implements CardChannel {
+    volatile boolean hanging;
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      return send(cmd, Deadline.NONE);
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+      if (!hanging) {
+        return new APDUResponse(new byte[] {(byte) 0x90, 0x00});
+      } else if (!deadline.isFinite()) {
+        throw new IOException("Hanging without a deadline");
+      }
+
+      try {
+        TimeUnit.NANOSECONDS.sleep(deadline.remaining(TimeUnit.NANOSECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      throw new CardTimeoutException("Deadline expired");
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package im.status.keycard.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CardChannelBatchTest {
+  private static final List<APDUCommand> CMDS = Arrays.asList(
+      new APDUCommand(0x80, 0x01, 0, 0, new byte[0]),
+      new APDUCommand(0x80, 0x02, 0, 0, new byte[0]),
+      new APDUCommand(0x80, 0x03, 0, 0, new byte[0])
+  );
+
+  @Test
+  public void getResponseBatchInTransaction() throws IOException {
+    TransactionCountingChannel card = new TransactionCountingChannel();
+    checkBatch(card, new GetResponseCardChannel(card));
+  }
+
+  @Test
+  public void recordingBatchInTransaction() throws IOException {
+    TransactionCountingChannel card = new TransactionCountingChannel();
+    checkBatch(card, new RecordingCardChannel(card, new ByteArrayOutputStream()));
+  }
+
+  @Test
+  public void adaptiveTimeoutBatchInTransaction() throws IOException {
+    TransactionCountingChannel card = new TransactionCountingChannel();
+    checkBatch(card, new AdaptiveTimeoutCardChannel(card, 1000));
+  }
+
+  @Test
+  public void stackedDecoratorsBatchInTransaction() throws IOException {
+    TransactionCountingChannel card = new TransactionCountingChannel();
+    checkBatch(card, new MetricsCardChannel(new GetResponseCardChannel(new AdaptiveTimeoutCardChannel(card, 1000))));
+  }
+
+  private static void checkBatch(TransactionCountingChannel card, CardChannel decorator) throws IOException {
+    List<APDUResponse> responses = decorator.sendBatch(CMDS);
+
+    assertEquals(CMDS.size(), responses.size());
+    assertEquals(CMDS.size(), card.sent);
+    assertEquals(0, card.sentOutsideTransaction);
+    assertEquals(1, card.begun);
+    assertEquals(0, card.depth);
+  }
+
+  /**
+   * Answers every command with 9000 and counts the commands sent outside of a transaction.
+   */
+  private static class TransactionCountingChannel implements CardChannel {
+    int depth;
+    int begun;
+    int sent;
+    int sentOutsideTransaction;
+
+    @Override
+    public APDUResponse send(APDUCommand cmd) throws IOException {
+      sent++;
+
+      if (depth == 0) {
+        sentOutsideTransaction++;
+      }
+
+      return new APDUResponse(new byte[] {(byte) 0x90, 0x00});
+    }
+
+    @Override
+    public APDUResponse send(APDUCommand cmd, Deadline deadline) throws IOException {
+      return send(cmd);
+    }
+
+    @Override
+    public void beginTransaction() throws IOException {
+      if (depth++ == 0) {
+        begun++;
+      }
+    }
+
+    @Override
+    public void endTransaction() throws IOException {
+      depth--;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return true;
+    }
+  }
+}